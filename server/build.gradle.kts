@@ -17,6 +17,8 @@ dependencies {
     implementation("info.picocli:picocli-shell-jline2:4.7.1")
     implementation("org.eclipse.jetty:jetty-webapp:11.0.14")
     implementation("org.eclipse.jetty:jetty-servlets:11.0.14")
+    implementation("org.eclipse.jetty.websocket:websocket-jetty-server:11.0.14")
+    implementation("com.fasterxml.jackson.dataformat:jackson-dataformat-cbor:2.14.2")
     implementation("commons-io:commons-io:2.11.0")
     implementation("ch.qos.logback:logback-classic:1.4.5")
 }
@@ -18,6 +18,7 @@
 package org.eclipse.leshan.server.demo;
 
 import org.eclipse.californium.core.config.CoapConfig;
+import org.eclipse.californium.core.network.Endpoint;
 import org.eclipse.californium.elements.config.Configuration;
 import org.eclipse.californium.elements.util.CertPathUtil;
 import org.eclipse.californium.scandium.config.DtlsConfig;
@@ -26,6 +27,7 @@ import org.eclipse.californium.scandium.config.DtlsConnectorConfig;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.servlet.ServletHolder;
 import org.eclipse.jetty.webapp.WebAppContext;
+import org.eclipse.jetty.websocket.server.config.JettyWebSocketServletContainerInitializer;
 import org.eclipse.leshan.core.demo.LwM2mDemoConstant;
 import org.eclipse.leshan.core.demo.cli.ShortErrorMessageHandler;
 import org.eclipse.leshan.core.model.ObjectLoader;
@@ -33,9 +35,19 @@ import org.eclipse.leshan.core.model.ObjectModel;
 import org.eclipse.leshan.server.californium.LeshanServer;
 import org.eclipse.leshan.server.californium.LeshanServerBuilder;
 import org.eclipse.leshan.server.core.demo.json.servlet.SecurityServlet;
+import org.eclipse.leshan.server.demo.cache.LastKnownValueCache;
+import org.eclipse.leshan.server.demo.capture.CoapCapture;
 import org.eclipse.leshan.server.demo.cli.LeshanServerDemoCLI;
+import org.eclipse.leshan.server.demo.model.CachingModelProvider;
+import org.eclipse.leshan.server.demo.registration.RegistrationIndex;
+import org.eclipse.leshan.server.demo.request.CircuitBreaker;
+import org.eclipse.leshan.server.demo.request.DeferredRequestQueue;
+import org.eclipse.leshan.server.demo.request.MultiPathReader;
+import org.eclipse.leshan.server.demo.request.RequestCoalescer;
+import org.eclipse.leshan.server.demo.request.RttEstimator;
 import org.eclipse.leshan.server.demo.servlet.*;
-import org.eclipse.leshan.server.model.LwM2mModelProvider;
+import org.eclipse.leshan.server.demo.servlet.json.JacksonRegistrationSerializer;
+import org.eclipse.leshan.server.demo.stats.TrafficStats;
 import org.eclipse.leshan.server.model.VersionedModelProvider;
 import org.eclipse.leshan.server.redis.RedisRegistrationStore;
 import org.eclipse.leshan.server.redis.RedisSecurityStore;
@@ -48,6 +60,7 @@ import picocli.CommandLine;
 import javax.jmdns.JmDNS;
 import javax.jmdns.ServiceInfo;
 import java.io.File;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
@@ -188,7 +201,8 @@ public class LeshanServerDemo {
         if (cli.main.modelsFolder != null) {
             models.addAll(ObjectLoader.loadObjectsFromDir(cli.main.modelsFolder, true));
         }
-        LwM2mModelProvider modelProvider = new VersionedModelProvider(models);
+        // registrations with the same object versions share one model
+        CachingModelProvider modelProvider = new CachingModelProvider(new VersionedModelProvider(models));
         builder.setObjectModelProvider(modelProvider);
 
         // Set securityStore & registrationStore
@@ -209,10 +223,12 @@ public class LeshanServerDemo {
         }
 
         // Create LWM2M server
-        return builder.build();
+        LeshanServer lwServer = builder.build();
+        modelProvider.setRegistrationService(lwServer.getRegistrationService());
+        return lwServer;
     }
 
-    private static Server createJettyServer(LeshanServerDemoCLI cli, LeshanServer lwServer) {
+    private static Server createJettyServer(LeshanServerDemoCLI cli, LeshanServer lwServer) throws IOException {
         // Now prepare Jetty
         InetSocketAddress jettyAddr;
         if (cli.main.webhost == null) {
@@ -227,14 +243,70 @@ public class LeshanServerDemo {
         root.setParentLoaderPriority(true);
         server.setHandler(root);
 
+        // measure round-trip time of each device to adapt request timeouts
+        RttEstimator rttEstimator = new RttEstimator(lwServer.getRegistrationService(), cli.main.minTimeout,
+            cli.main.maxTimeout);
+        for (Endpoint endpoint : lwServer.coap().getServer().getEndpoints()) {
+            endpoint.addInterceptor(rttEstimator);
+        }
+        // count traffic of each device, once messages are sent so their size is known
+        TrafficStats trafficStats = new TrafficStats(lwServer.getRegistrationService());
+        for (Endpoint endpoint : lwServer.coap().getServer().getEndpoints()) {
+            endpoint.addPostProcessInterceptor(trafficStats);
+        }
+        root.addServlet(new ServletHolder(new TrafficServlet(trafficStats)), "/api/traffic/*");
+        // capture CoAP traffic to disk, once messages are sent so they are already serialized
+        if (cli.main.captureDir != null) {
+            CoapCapture capture = new CoapCapture(lwServer.getRegistrationService(), cli.main.captureDir.toPath(),
+                cli.main.captureSegmentSize, cli.main.captureSegments);
+            capture.setEndpointFilter(cli.main.captureEndpoints);
+            for (Endpoint endpoint : lwServer.coap().getServer().getEndpoints()) {
+                endpoint.addPostProcessInterceptor(capture);
+            }
+            root.addServlet(new ServletHolder(new CaptureServlet(capture)), "/api/capture/*");
+        }
+
+        CircuitBreaker circuitBreaker = new CircuitBreaker(lwServer, cli.main.circuitBreakerThreshold,
+            rttEstimator);
+
+        // registration JSON is cached, and shared by the client list and the event stream
+        JacksonRegistrationSerializer registrationSerializer = new JacksonRegistrationSerializer(
+            lwServer.getPresenceService(), circuitBreaker, lwServer.getRegistrationService());
+
         // Create Servlet
-        EventServlet eventServlet = new EventServlet(lwServer, lwServer.getSecuredAddress().getPort());
+        EventServlet eventServlet = new EventServlet(lwServer, lwServer.getSecuredAddress().getPort(),
+            registrationSerializer);
         ServletHolder eventServletHolder = new ServletHolder(eventServlet);
+        // event streams stay open on an async context
+        eventServletHolder.setAsyncSupported(true);
         root.addServlet(eventServletHolder, "/api/event/*");
-
-        ServletHolder clientServletHolder = new ServletHolder(new ClientServlet(lwServer));
+        // same event stream over a WebSocket, with binary frames and in-band subscriptions
+        JettyWebSocketServletContainerInitializer.configure(root, null);
+        root.addServlet(new ServletHolder(new EventWebSocketServlet(eventServlet)), "/api/event/ws");
+
+        RegistrationIndex registrationIndex = new RegistrationIndex(lwServer.getRegistrationService());
+        LastKnownValueCache valueCache = new LastKnownValueCache(lwServer, cli.main.valueCacheSize);
+        RequestCoalescer coalescer = new RequestCoalescer(circuitBreaker);
+        MultiPathReader multiPathReader = new MultiPathReader(coalescer, valueCache,
+            MultiPathReader.DEFAULT_PIPELINE_DEPTH);
+        DeferredRequestQueue deferredQueue = new DeferredRequestQueue(lwServer, valueCache,
+            cli.main.deferredPerEndpoint, cli.main.deferredTotal);
+
+        ServletHolder clientServletHolder = new ServletHolder(
+            new ClientServlet(lwServer, registrationIndex, valueCache, coalescer, deferredQueue, registrationSerializer,
+                rttEstimator, multiPathReader, trafficStats));
+        // device requests are completed asynchronously from Leshan callbacks
+        clientServletHolder.setAsyncSupported(true);
         root.addServlet(clientServletHolder, "/api/clients/*");
 
+        ServletHolder batchServletHolder = new ServletHolder(
+            new BatchServlet(lwServer, registrationIndex, valueCache, coalescer, rttEstimator));
+        batchServletHolder.setAsyncSupported(true);
+        root.addServlet(batchServletHolder, "/api/batch/*");
+
+        ServletHolder jobServletHolder = new ServletHolder(new JobServlet(deferredQueue));
+        root.addServlet(jobServletHolder, "/api/jobs/*");
+
         ServletHolder securityServletHolder;
         if (cli.identity.isRPK()) {
             securityServletHolder = new ServletHolder(
@@ -248,9 +320,11 @@ public class LeshanServerDemo {
 
         ServletHolder serverServletHolder;
         if (cli.identity.isRPK()) {
-            serverServletHolder = new ServletHolder(new ServerServlet(lwServer, cli.identity.getPublicKey()));
+            serverServletHolder = new ServletHolder(
+                new ServerServlet(lwServer, registrationIndex, coalescer, cli.identity.getPublicKey()));
         } else {
-            serverServletHolder = new ServletHolder(new ServerServlet(lwServer, cli.identity.getCertChain()[0]));
+            serverServletHolder = new ServletHolder(
+                new ServerServlet(lwServer, registrationIndex, coalescer, cli.identity.getCertChain()[0]));
         }
         root.addServlet(serverServletHolder, "/api/server/*");
 
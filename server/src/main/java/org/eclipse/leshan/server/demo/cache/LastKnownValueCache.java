@@ -0,0 +1,371 @@
+/*******************************************************************************
+ * Copyright (c) 2023 Sierra Wireless and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * <p>
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v20.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * <p>
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.demo.cache;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.Set;
+
+import org.eclipse.leshan.core.node.LwM2mNode;
+import org.eclipse.leshan.core.node.LwM2mObject;
+import org.eclipse.leshan.core.node.LwM2mObjectInstance;
+import org.eclipse.leshan.core.node.LwM2mPath;
+import org.eclipse.leshan.core.node.LwM2mResource;
+import org.eclipse.leshan.core.node.TimestampedLwM2mNodes;
+import org.eclipse.leshan.core.observation.CompositeObservation;
+import org.eclipse.leshan.core.observation.Observation;
+import org.eclipse.leshan.core.observation.SingleObservation;
+import org.eclipse.leshan.core.request.CreateRequest;
+import org.eclipse.leshan.core.request.DeleteRequest;
+import org.eclipse.leshan.core.request.DownlinkRequest;
+import org.eclipse.leshan.core.request.ObserveRequest;
+import org.eclipse.leshan.core.request.ReadRequest;
+import org.eclipse.leshan.core.request.SendRequest;
+import org.eclipse.leshan.core.request.WriteCompositeRequest;
+import org.eclipse.leshan.core.request.WriteRequest;
+import org.eclipse.leshan.core.response.LwM2mResponse;
+import org.eclipse.leshan.core.response.ObserveCompositeResponse;
+import org.eclipse.leshan.core.response.ObserveResponse;
+import org.eclipse.leshan.core.response.ReadCompositeResponse;
+import org.eclipse.leshan.core.response.ReadResponse;
+import org.eclipse.leshan.server.californium.LeshanServer;
+import org.eclipse.leshan.server.observation.ObservationListener;
+import org.eclipse.leshan.server.registration.Registration;
+import org.eclipse.leshan.server.registration.RegistrationListener;
+import org.eclipse.leshan.server.registration.RegistrationUpdate;
+import org.eclipse.leshan.server.send.SendListener;
+
+/**
+ * A bounded (LRU) cache of the last known value of resources, keyed by registration id and {@link LwM2mPath}.
+ * <p>
+ * The cache is fed by read responses, observe responses, notifications and Send requests, and invalidated by writes,
+ * creates, deletes and deregistration. A lookup for a path may be served from a cached ancestor (e.g. a read of
+ * <code>/3/0/9</code> from a cached <code>/3/0</code> instance).
+ */
+public class LastKnownValueCache {
+
+    public static final int DEFAULT_MAX_ENTRIES = 100_000;
+
+    private final int maxEntries;
+
+    // access ordered for LRU eviction, guarded by "this"
+    private final LinkedHashMap<Key, CachedValue> values;
+    // paths cached per registration, to invalidate without scanning the whole cache, guarded by "this"
+    private final Map<String, Set<LwM2mPath>> pathsByRegistration = new HashMap<>();
+
+    private final RegistrationListener registrationListener = new RegistrationListener() {
+
+        @Override
+        public void registered(Registration registration, Registration previousReg,
+                Collection<Observation> previousObservations) {
+            if (previousReg != null) {
+                invalidate(previousReg.getId());
+            }
+        }
+
+        @Override
+        public void updated(RegistrationUpdate update, Registration updatedRegistration,
+                Registration previousRegistration) {
+        }
+
+        @Override
+        public void unregistered(Registration registration, Collection<Observation> observations, boolean expired,
+                Registration newReg) {
+            invalidate(registration.getId());
+        }
+    };
+
+    private final ObservationListener observationListener = new ObservationListener() {
+
+        @Override
+        public void newObservation(Observation observation, Registration registration) {
+        }
+
+        @Override
+        public void cancelled(Observation observation) {
+        }
+
+        @Override
+        public void onResponse(SingleObservation observation, Registration registration, ObserveResponse response) {
+            if (registration != null && response.isSuccess() && response.getContent() != null) {
+                put(registration.getId(), observation.getPath(), response.getContent());
+            }
+        }
+
+        @Override
+        public void onResponse(CompositeObservation observation, Registration registration,
+                ObserveCompositeResponse response) {
+            if (registration != null && response.isSuccess() && response.getContent() != null) {
+                putAll(registration.getId(), response.getContent());
+            }
+        }
+
+        @Override
+        public void onError(Observation observation, Registration registration, Exception error) {
+        }
+    };
+
+    private final SendListener sendListener = new SendListener() {
+
+        @Override
+        public void dataReceived(Registration registration, TimestampedLwM2mNodes data, SendRequest request) {
+            if (registration != null) {
+                putAll(registration.getId(), data.getNodes());
+            }
+        }
+
+        @Override
+        public void onError(Registration registration, Exception error) {
+        }
+    };
+
+    public LastKnownValueCache(LeshanServer server, int maxEntries) {
+        this.maxEntries = maxEntries;
+        this.values = new LinkedHashMap<Key, CachedValue>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Entry<Key, CachedValue> eldest) {
+                if (size() > LastKnownValueCache.this.maxEntries) {
+                    unlink(eldest.getKey());
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        server.getRegistrationService().addListener(registrationListener);
+        server.getObservationService().addListener(observationListener);
+        server.getSendService().addListener(sendListener);
+    }
+
+    /**
+     * Update the cache from the response of a request sent to a device.
+     */
+    public void onResponse(Registration registration, DownlinkRequest<?> request, LwM2mResponse response) {
+        String registrationId = registration.getId();
+        if (request instanceof WriteRequest) {
+            invalidate(registrationId, ((WriteRequest) request).getPath());
+        } else if (request instanceof WriteCompositeRequest) {
+            for (LwM2mPath path : ((WriteCompositeRequest) request).getNodes().keySet()) {
+                invalidate(registrationId, path);
+            }
+        } else if (request instanceof CreateRequest) {
+            invalidate(registrationId, ((CreateRequest) request).getPath());
+        } else if (request instanceof DeleteRequest) {
+            invalidate(registrationId, ((DeleteRequest) request).getPath());
+        } else if (response.isSuccess()) {
+            // ObserveResponse extends ReadResponse
+            if (request instanceof ReadRequest && response instanceof ReadResponse) {
+                LwM2mNode content = ((ReadResponse) response).getContent();
+                if (content != null) {
+                    put(registrationId, ((ReadRequest) request).getPath(), content);
+                }
+            } else if (request instanceof ObserveRequest && response instanceof ReadResponse) {
+                LwM2mNode content = ((ReadResponse) response).getContent();
+                if (content != null) {
+                    put(registrationId, ((ObserveRequest) request).getPath(), content);
+                }
+            } else if (response instanceof ReadCompositeResponse) {
+                Map<LwM2mPath, LwM2mNode> content = ((ReadCompositeResponse) response).getContent();
+                if (content != null) {
+                    putAll(registrationId, content);
+                }
+            } else if (response instanceof ObserveCompositeResponse) {
+                Map<LwM2mPath, LwM2mNode> content = ((ObserveCompositeResponse) response).getContent();
+                if (content != null) {
+                    putAll(registrationId, content);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the last known value of a resource if it is not older than <code>maxAgeInMs</code>.
+     *
+     * @return the cached value or <code>null</code> if there is no fresh enough value.
+     */
+    public synchronized CachedValue get(String registrationId, LwM2mPath path, long maxAgeInMs) {
+        long oldest = System.currentTimeMillis() - maxAgeInMs;
+
+        // exact match first, then look for an ancestor containing the target
+        for (LwM2mPath candidate = path; candidate != null; candidate = parent(candidate)) {
+            CachedValue cached = values.get(new Key(registrationId, candidate));
+            if (cached != null && cached.getTimestamp() >= oldest) {
+                LwM2mNode node = extract(cached.getNode(), candidate, path);
+                if (node != null) {
+                    return candidate == path ? cached : new CachedValue(node, cached.getTimestamp());
+                }
+            }
+        }
+        return null;
+    }
+
+    public synchronized void put(String registrationId, LwM2mPath path, LwM2mNode node) {
+        // index first : if the new entry is evicted right away, removeEldestEntry unlinks it
+        pathsByRegistration.computeIfAbsent(registrationId, k -> new HashSet<>()).add(path);
+        values.put(new Key(registrationId, path), new CachedValue(node, System.currentTimeMillis()));
+    }
+
+    public synchronized void putAll(String registrationId, Map<LwM2mPath, LwM2mNode> nodes) {
+        for (Entry<LwM2mPath, LwM2mNode> entry : nodes.entrySet()) {
+            if (entry.getValue() != null) {
+                put(registrationId, entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Remove all values which could be impacted by a modification of the given path : the path itself, its ancestors
+     * and its descendants.
+     */
+    public synchronized void invalidate(String registrationId, LwM2mPath path) {
+        Set<LwM2mPath> paths = pathsByRegistration.get(registrationId);
+        if (paths == null) {
+            return;
+        }
+        for (Iterator<LwM2mPath> it = paths.iterator(); it.hasNext();) {
+            LwM2mPath cached = it.next();
+            if (isAncestorOrSelf(cached, path) || isAncestorOrSelf(path, cached)) {
+                values.remove(new Key(registrationId, cached));
+                it.remove();
+            }
+        }
+        if (paths.isEmpty()) {
+            pathsByRegistration.remove(registrationId);
+        }
+    }
+
+    public synchronized void invalidate(String registrationId) {
+        Set<LwM2mPath> paths = pathsByRegistration.remove(registrationId);
+        if (paths != null) {
+            for (LwM2mPath path : paths) {
+                values.remove(new Key(registrationId, path));
+            }
+        }
+    }
+
+    private void unlink(Key key) {
+        Set<LwM2mPath> paths = pathsByRegistration.get(key.registrationId);
+        if (paths != null) {
+            paths.remove(key.path);
+            if (paths.isEmpty()) {
+                pathsByRegistration.remove(key.registrationId);
+            }
+        }
+    }
+
+    private static boolean isAncestorOrSelf(LwM2mPath ancestor, LwM2mPath path) {
+        if (ancestor.isRoot()) {
+            return true;
+        }
+        String a = ancestor.toString();
+        String p = path.toString();
+        return p.equals(a) || p.startsWith(a + "/");
+    }
+
+    private static LwM2mPath parent(LwM2mPath path) {
+        if (path.isResourceInstance()) {
+            return new LwM2mPath(path.getObjectId(), path.getObjectInstanceId(), path.getResourceId());
+        } else if (path.isResource()) {
+            return new LwM2mPath(path.getObjectId(), path.getObjectInstanceId());
+        } else if (path.isObjectInstance()) {
+            return new LwM2mPath(path.getObjectId());
+        }
+        return null;
+    }
+
+    /**
+     * Extract the node at <code>target</code> from a node located at <code>nodePath</code>.
+     */
+    private static LwM2mNode extract(LwM2mNode node, LwM2mPath nodePath, LwM2mPath target) {
+        LwM2mNode current = node;
+        if (nodePath.isObject() && !target.isObject()) {
+            if (!(current instanceof LwM2mObject)) {
+                return null;
+            }
+            current = ((LwM2mObject) current).getInstance(target.getObjectInstanceId());
+        }
+        if (current != null && (nodePath.isObject() || nodePath.isObjectInstance())
+                && (target.isResource() || target.isResourceInstance())) {
+            if (!(current instanceof LwM2mObjectInstance)) {
+                return null;
+            }
+            current = ((LwM2mObjectInstance) current).getResource(target.getResourceId());
+        }
+        if (current != null && !nodePath.isResourceInstance() && target.isResourceInstance()) {
+            if (!(current instanceof LwM2mResource) || !((LwM2mResource) current).isMultiInstances()) {
+                return null;
+            }
+            current = ((LwM2mResource) current).getInstance(target.getResourceInstanceId());
+        }
+        return current;
+    }
+
+    public static class CachedValue {
+
+        private final LwM2mNode node;
+        private final long timestamp;
+
+        CachedValue(LwM2mNode node, long timestamp) {
+            this.node = node;
+            this.timestamp = timestamp;
+        }
+
+        public LwM2mNode getNode() {
+            return node;
+        }
+
+        /**
+         * @return the time (in ms) at which the value was received.
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+    }
+
+    private static class Key {
+
+        private final String registrationId;
+        private final LwM2mPath path;
+
+        Key(String registrationId, LwM2mPath path) {
+            this.registrationId = registrationId;
+            this.path = path;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Key))
+                return false;
+            Key other = (Key) o;
+            return registrationId.equals(other.registrationId) && path.equals(other.path);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(registrationId, path);
+        }
+    }
+}
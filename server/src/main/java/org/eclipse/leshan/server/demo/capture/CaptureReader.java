@@ -0,0 +1,105 @@
+/*******************************************************************************
+ * Copyright (c) 2023 Sierra Wireless and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * <p>
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v20.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * <p>
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.demo.capture;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.eclipse.californium.core.coap.Message;
+import org.eclipse.californium.core.network.serialization.UdpDataParser;
+import org.eclipse.leshan.core.util.Hex;
+
+import picocli.CommandLine;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+import picocli.CommandLine.Parameters;
+
+/**
+ * Print the content of CoAP captures (segment files or downloads of <code>/api/capture/download</code>), one line by
+ * message :
+ *
+ * <pre>
+ * java -cp leshan-server-demo.jar org.eclipse.leshan.server.demo.capture.CaptureReader [-e endpoint] file...
+ * </pre>
+ */
+@Command(name = "capture-reader",
+         mixinStandardHelpOptions = true,
+         description = "Print CoAP messages captured by the Leshan server demo.")
+public class CaptureReader implements Callable<Integer> {
+
+    @Parameters(arity = "1..*", description = "Capture files, in chronological order.")
+    private List<File> files;
+
+    @Option(names = { "-e", "--endpoint" }, description = "Only print messages of these endpoints.")
+    private List<String> endpoints;
+
+    @Option(names = { "-x", "--hex" }, description = "Print raw messages in hexadecimal.")
+    private boolean hex;
+
+    private final PrintStream out = System.out;
+
+    @Override
+    public Integer call() throws IOException {
+        UdpDataParser parser = new UdpDataParser();
+        for (File file : files) {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+                CaptureRecord.readHeader(in);
+                CaptureRecord record;
+                while ((record = CaptureRecord.read(in)) != null) {
+                    if (endpoints == null || endpoints.contains(record.getEndpoint())) {
+                        out.println(format(record, parser));
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println(String.format("Unable to read %s : %s", file, e.getMessage()));
+                return 1;
+            }
+        }
+        return 0;
+    }
+
+    private String format(CaptureRecord record, UdpDataParser parser) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(Instant.ofEpochMilli(record.getTimestamp())).append(' ');
+        sb.append(record.isIncoming() ? "<- " : "-> ");
+        sb.append(record.getPeer().getAddress().getHostAddress()).append(':').append(record.getPeer().getPort())
+                .append(' ');
+        sb.append(record.getEndpoint() == null ? "-" : record.getEndpoint()).append(' ');
+        if (hex) {
+            sb.append(Hex.encodeHexString(record.getMessage()));
+        } else {
+            try {
+                Message message = parser.parseMessage(record.getMessage());
+                sb.append(message);
+            } catch (RuntimeException e) {
+                sb.append("invalid message ").append(Hex.encodeHexString(record.getMessage()));
+            }
+        }
+        return sb.toString();
+    }
+
+    public static void main(String[] args) {
+        System.exit(new CommandLine(new CaptureReader()).execute(args));
+    }
+}
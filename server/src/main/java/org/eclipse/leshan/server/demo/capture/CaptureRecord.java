@@ -0,0 +1,181 @@
+/*******************************************************************************
+ * Copyright (c) 2023 Sierra Wireless and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * <p>
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v20.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * <p>
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.demo.capture;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A captured CoAP message and its binary format.
+ * <p>
+ * A capture (segment file or download) starts with a header : the <code>LCAP</code> magic number, a format version
+ * (2 bytes) and 2 reserved bytes. Then come records, all integers in network byte order :
+ *
+ * <pre>
+ * length       4 bytes, size of the record after this field, 0 marks the end of the capture
+ * timestamp    8 bytes, ms since epoch
+ * flags        1 byte, bit 0 set for a received message
+ * address size 1 byte, 4 or 16
+ * address      4 or 16 bytes
+ * port         2 bytes
+ * ep size      2 bytes, 0 if the peer is not registered
+ * ep           UTF-8 endpoint name
+ * message      the rest of the record, raw CoAP message as on the wire
+ * </pre>
+ */
+public class CaptureRecord {
+
+    static final int MAGIC = 0x4C434150; // "LCAP"
+    static final short VERSION = 1;
+    static final int HEADER_SIZE = 8;
+
+    private static final int FLAG_INCOMING = 1;
+
+    private final long timestamp;
+    private final boolean incoming;
+    private final InetSocketAddress peer;
+    private final String endpoint;
+    private final byte[] message;
+
+    public CaptureRecord(long timestamp, boolean incoming, InetSocketAddress peer, String endpoint, byte[] message) {
+        this.timestamp = timestamp;
+        this.incoming = incoming;
+        this.peer = peer;
+        this.endpoint = endpoint;
+        this.message = message;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public boolean isIncoming() {
+        return incoming;
+    }
+
+    public InetSocketAddress getPeer() {
+        return peer;
+    }
+
+    /**
+     * @return the endpoint name of the peer, <code>null</code> if it was not registered.
+     */
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * @return the raw CoAP message.
+     */
+    public byte[] getMessage() {
+        return message;
+    }
+
+    static void writeHeader(ByteBuffer buffer) {
+        buffer.putInt(MAGIC).putShort(VERSION).putShort((short) 0);
+    }
+
+    static void writeHeader(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeShort(0);
+    }
+
+    /**
+     * @throws IOException if this is not a capture or its version is not supported.
+     */
+    static void readHeader(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("not a CoAP capture");
+        }
+        short version = in.readShort();
+        if (version != VERSION) {
+            throw new IOException(String.format("unsupported capture version %d", version));
+        }
+        in.readShort();
+    }
+
+    /**
+     * @param endpoint the encoded endpoint name.
+     * @return the size of the record after the length field.
+     */
+    int size(byte[] endpoint) {
+        return 8 + 1 + 1 + peer.getAddress().getAddress().length + 2 + 2 + endpoint.length + message.length;
+    }
+
+    /**
+     * Write the record after the length field.
+     */
+    void writeBody(ByteBuffer buffer, byte[] endpoint) {
+        byte[] address = peer.getAddress().getAddress();
+        buffer.putLong(timestamp);
+        buffer.put((byte) (incoming ? FLAG_INCOMING : 0));
+        buffer.put((byte) address.length);
+        buffer.put(address);
+        buffer.putShort((short) peer.getPort());
+        buffer.putShort((short) endpoint.length);
+        buffer.put(endpoint);
+        buffer.put(message);
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        byte[] endpoint = encodedEndpoint();
+        ByteBuffer buffer = ByteBuffer.allocate(4 + size(endpoint));
+        buffer.putInt(size(endpoint));
+        writeBody(buffer, endpoint);
+        out.write(buffer.array());
+    }
+
+    byte[] encodedEndpoint() {
+        return endpoint == null ? new byte[0] : endpoint.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the next record, or <code>null</code> at the end of the capture.
+     */
+    static CaptureRecord read(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length == 0) {
+            return null;
+        }
+        byte[] record = new byte[length];
+        in.readFully(record);
+
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        long timestamp = buffer.getLong();
+        boolean incoming = (buffer.get() & FLAG_INCOMING) != 0;
+        byte[] address = new byte[buffer.get()];
+        buffer.get(address);
+        int port = buffer.getShort() & 0xFFFF;
+        byte[] endpoint = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(endpoint);
+        byte[] message = new byte[buffer.remaining()];
+        buffer.get(message);
+        return new CaptureRecord(timestamp, incoming, new InetSocketAddress(InetAddress.getByAddress(address), port),
+                endpoint.length == 0 ? null : new String(endpoint, StandardCharsets.UTF_8), message);
+    }
+}
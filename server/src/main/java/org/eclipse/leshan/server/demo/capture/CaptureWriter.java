@@ -0,0 +1,48 @@
+/*******************************************************************************
+ * Copyright (c) 2023 Sierra Wireless and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * <p>
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v20.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * <p>
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.demo.capture;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Write captured records as a stream in the capture format, readable by {@link CaptureReader}.
+ */
+public class CaptureWriter implements Closeable {
+
+    private final DataOutputStream out;
+
+    public CaptureWriter(OutputStream out) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(out));
+        CaptureRecord.writeHeader(this.out);
+    }
+
+    public void write(CaptureRecord record) throws IOException {
+        record.write(out);
+    }
+
+    /**
+     * Write the end marker and close the underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        out.writeInt(0);
+        out.close();
+    }
+}
@@ -0,0 +1,360 @@
+/*******************************************************************************
+ * Copyright (c) 2023 Sierra Wireless and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * <p>
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v20.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * <p>
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.demo.capture;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.eclipse.californium.core.coap.EmptyMessage;
+import org.eclipse.californium.core.coap.Message;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.interceptors.MessageInterceptor;
+import org.eclipse.californium.core.network.serialization.UdpDataSerializer;
+import org.eclipse.leshan.core.observation.Observation;
+import org.eclipse.leshan.core.util.NamedThreadFactory;
+import org.eclipse.leshan.server.registration.Registration;
+import org.eclipse.leshan.server.registration.RegistrationListener;
+import org.eclipse.leshan.server.registration.RegistrationService;
+import org.eclipse.leshan.server.registration.RegistrationUpdate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Capture of raw CoAP messages to rotating segment files, see {@link CaptureRecord} for the format.
+ * <p>
+ * To be added as a post-process interceptor, so sent messages are already serialized. Californium threads only look
+ * up the endpoint of the peer and queue the message, a single writer thread encodes records into the memory-mapped
+ * current segment. When the queue is full, messages are dropped rather than slowing down CoAP processing.
+ * <p>
+ * Segments are pre-allocated files of a fixed size, the oldest one is deleted when there are too many. Capture
+ * restarts in a new segment after a restart, previous ones are kept.
+ */
+public class CoapCapture implements MessageInterceptor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CoapCapture.class);
+
+    public static final int DEFAULT_SEGMENT_SIZE = 16; // MB
+    public static final int DEFAULT_MAX_SEGMENTS = 8;
+
+    private static final String SEGMENT_EXTENSION = ".lwcap";
+    private static final Pattern SEGMENT_NAME = Pattern.compile("capture-(\\d+)\\" + SEGMENT_EXTENSION);
+
+    // max number of messages waiting to be written
+    private static final int QUEUE_CAPACITY = 8192;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int maxSegments;
+
+    private final Map<InetSocketAddress, String> endpointsByAddress = new ConcurrentHashMap<>();
+    // null means all endpoints
+    private volatile Set<String> endpointFilter;
+
+    private final Queue<Pending> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger wip = new AtomicInteger();
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(new NamedThreadFactory("CoAP Capture"));
+    private final AtomicLong captured = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    // only accessed by the writer
+    private final UdpDataSerializer serializer = new UdpDataSerializer();
+    private MappedByteBuffer segment;
+    private long lastSequence;
+
+    private final RegistrationListener registrationListener = new RegistrationListener() {
+
+        @Override
+        public void registered(Registration registration, Registration previousReg,
+                Collection<Observation> previousObservations) {
+            if (previousReg != null) {
+                endpointsByAddress.remove(previousReg.getIdentity().getPeerAddress(), previousReg.getEndpoint());
+            }
+            endpointsByAddress.put(registration.getIdentity().getPeerAddress(), registration.getEndpoint());
+        }
+
+        @Override
+        public void updated(RegistrationUpdate update, Registration updatedRegistration,
+                Registration previousRegistration) {
+            endpointsByAddress.remove(previousRegistration.getIdentity().getPeerAddress(),
+                    previousRegistration.getEndpoint());
+            endpointsByAddress.put(updatedRegistration.getIdentity().getPeerAddress(),
+                    updatedRegistration.getEndpoint());
+        }
+
+        @Override
+        public void unregistered(Registration registration, Collection<Observation> observations, boolean expired,
+                Registration newReg) {
+            endpointsByAddress.remove(registration.getIdentity().getPeerAddress(), registration.getEndpoint());
+        }
+    };
+
+    /**
+     * @param segmentSize size of a segment file in MB.
+     * @param maxSegments number of segment files kept.
+     */
+    public CoapCapture(RegistrationService registrationService, Path directory, int segmentSize, int maxSegments)
+            throws IOException {
+        if (segmentSize <= 0 || segmentSize > 1024 || maxSegments <= 0) {
+            throw new IllegalArgumentException(
+                    String.format("invalid capture segments (%d x %d MB)", maxSegments, segmentSize));
+        }
+        this.directory = Files.createDirectories(directory);
+        this.segmentSize = segmentSize * 1024 * 1024;
+        this.maxSegments = maxSegments;
+        for (Path existing : getSegments()) {
+            lastSequence = Math.max(lastSequence, sequenceOf(existing));
+        }
+
+        registrationService.addListener(registrationListener);
+        for (Iterator<Registration> it = registrationService.getAllRegistrations(); it.hasNext();) {
+            Registration registration = it.next();
+            endpointsByAddress.putIfAbsent(registration.getIdentity().getPeerAddress(), registration.getEndpoint());
+        }
+    }
+
+    /**
+     * @param endpoints only capture messages of these endpoints, <code>null</code> or empty to capture all messages.
+     */
+    public void setEndpointFilter(Collection<String> endpoints) {
+        endpointFilter = endpoints == null || endpoints.isEmpty() ? null
+                : Collections.unmodifiableSet(new HashSet<>(endpoints));
+    }
+
+    /**
+     * @return the captured endpoints, <code>null</code> if all messages are captured.
+     */
+    public Set<String> getEndpointFilter() {
+        return endpointFilter;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    public int getMaxSegments() {
+        return maxSegments;
+    }
+
+    public long getCapturedCount() {
+        return captured.get();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the segment files, oldest first.
+     */
+    public List<Path> getSegments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(p -> SEGMENT_NAME.matcher(p.getFileName().toString()).matches())
+                    .sorted((p1, p2) -> Long.compare(sequenceOf(p1), sequenceOf(p2))) //
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static long sequenceOf(Path segment) {
+        Matcher matcher = SEGMENT_NAME.matcher(segment.getFileName().toString());
+        return matcher.matches() ? Long.parseLong(matcher.group(1)) : -1;
+    }
+
+    /**
+     * Read all captured records accepted by the filter, oldest first. Segments deleted in the meantime are skipped.
+     */
+    public void read(Predicate<CaptureRecord> filter, RecordConsumer consumer) throws IOException {
+        for (Path segment : getSegments()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(segment)))) {
+                CaptureRecord.readHeader(in);
+                CaptureRecord record;
+                while ((record = CaptureRecord.read(in)) != null) {
+                    if (filter.test(record)) {
+                        consumer.accept(record);
+                    }
+                }
+            } catch (NoSuchFileException e) {
+                // rotated out
+            }
+        }
+    }
+
+    public interface RecordConsumer {
+        void accept(CaptureRecord record) throws IOException;
+    }
+
+    public void destroy() {
+        writer.shutdown();
+    }
+
+    @Override
+    public void sendRequest(Request request) {
+        capture(request, request.getDestinationContext().getPeerAddress(), false);
+    }
+
+    @Override
+    public void sendResponse(Response response) {
+        capture(response, response.getDestinationContext().getPeerAddress(), false);
+    }
+
+    @Override
+    public void sendEmptyMessage(EmptyMessage message) {
+        capture(message, message.getDestinationContext().getPeerAddress(), false);
+    }
+
+    @Override
+    public void receiveRequest(Request request) {
+        capture(request, request.getSourceContext().getPeerAddress(), true);
+    }
+
+    @Override
+    public void receiveResponse(Response response) {
+        capture(response, response.getSourceContext().getPeerAddress(), true);
+    }
+
+    @Override
+    public void receiveEmptyMessage(EmptyMessage message) {
+        capture(message, message.getSourceContext().getPeerAddress(), true);
+    }
+
+    private void capture(Message message, InetSocketAddress peer, boolean incoming) {
+        String endpoint = endpointsByAddress.get(peer);
+        Set<String> filter = endpointFilter;
+        if (filter != null && (endpoint == null || !filter.contains(endpoint))) {
+            return;
+        }
+        if (queued.incrementAndGet() > QUEUE_CAPACITY) {
+            queued.decrementAndGet();
+            dropped.incrementAndGet();
+            return;
+        }
+        queue.offer(new Pending(System.currentTimeMillis(), incoming, peer, endpoint, message));
+        if (wip.getAndIncrement() == 0) {
+            try {
+                writer.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                // capture stopped
+            }
+        }
+    }
+
+    private void drain() {
+        int missed = 1;
+        do {
+            Pending pending;
+            while ((pending = queue.poll()) != null) {
+                queued.decrementAndGet();
+                try {
+                    write(pending);
+                } catch (IOException | RuntimeException e) {
+                    dropped.incrementAndGet();
+                    LOG.warn("Unable to capture CoAP message", e);
+                }
+            }
+            missed = wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private void write(Pending pending) throws IOException {
+        byte[] bytes = pending.message.getBytes();
+        if (bytes == null) {
+            // not sent (e.g. cancelled), serialize it here rather than on a Californium thread
+            bytes = serializer.getByteArray(pending.message);
+        }
+        CaptureRecord record = new CaptureRecord(pending.timestamp, pending.incoming, pending.peer, pending.endpoint,
+                bytes);
+        byte[] endpoint = record.encodedEndpoint();
+        int size = record.size(endpoint);
+        // room for the length field and the end marker
+        if (CaptureRecord.HEADER_SIZE + 4 + size + 4 > segmentSize) {
+            dropped.incrementAndGet();
+            return;
+        }
+        if (segment == null || segment.remaining() < 4 + size + 4) {
+            rotate();
+        }
+        int position = segment.position();
+        segment.position(position + 4);
+        record.writeBody(segment, endpoint);
+        // the length is written last, so a concurrent reader never sees a partial record
+        segment.putInt(position, size);
+        captured.incrementAndGet();
+    }
+
+    private void rotate() throws IOException {
+        Path path = directory.resolve(String.format("capture-%08d%s", ++lastSequence, SEGMENT_EXTENSION));
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            // the mapping stays valid once the channel is closed
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+        CaptureRecord.writeHeader(segment);
+
+        List<Path> segments = getSegments();
+        for (int i = 0; i < segments.size() - maxSegments; i++) {
+            Files.deleteIfExists(segments.get(i));
+        }
+    }
+
+    private static class Pending {
+        private final long timestamp;
+        private final boolean incoming;
+        private final InetSocketAddress peer;
+        private final String endpoint;
+        private final Message message;
+
+        Pending(long timestamp, boolean incoming, InetSocketAddress peer, String endpoint, Message message) {
+            this.timestamp = timestamp;
+            this.incoming = incoming;
+            this.peer = peer;
+            this.endpoint = endpoint;
+            this.message = message;
+        }
+    }
+}
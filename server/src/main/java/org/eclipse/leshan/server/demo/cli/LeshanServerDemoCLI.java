@@ -15,13 +15,21 @@
  *******************************************************************************/
 package org.eclipse.leshan.server.demo.cli;
 
+import java.io.File;
 import java.net.URI;
+import java.util.List;
 
+import org.eclipse.leshan.core.demo.cli.MultiParameterException;
 import org.eclipse.leshan.core.demo.cli.StandardHelpOptions;
 import org.eclipse.leshan.core.demo.cli.VersionProvider;
 import org.eclipse.leshan.server.core.demo.cli.DtlsSection;
 import org.eclipse.leshan.server.core.demo.cli.GeneralSection;
 import org.eclipse.leshan.server.core.demo.cli.IdentitySection;
+import org.eclipse.leshan.server.demo.cache.LastKnownValueCache;
+import org.eclipse.leshan.server.demo.capture.CoapCapture;
+import org.eclipse.leshan.server.demo.request.CircuitBreaker;
+import org.eclipse.leshan.server.demo.request.DeferredRequestQueue;
+import org.eclipse.leshan.server.demo.request.RttEstimator;
 
 import picocli.CommandLine.ArgGroup;
 import picocli.CommandLine.Command;
@@ -82,6 +90,73 @@ public class LeshanServerDemoCLI implements Runnable {
                 description = { //
                         "Disable experimental OSCORE feature." })
         public Boolean disableOscore = false;
+
+        @Option(names = { "-vcs", "--value-cache-size" },
+                description = { //
+                        "Maximum number of resource values kept in the last known value cache.", //
+                        "This cache is used to answer read requests with a maxAge parameter.", //
+                        "Default: ${DEFAULT-VALUE}" })
+        public Integer valueCacheSize = LastKnownValueCache.DEFAULT_MAX_ENTRIES;
+
+        @Option(names = { "-dqe", "--deferred-queue-per-endpoint" },
+                description = { //
+                        "Maximum number of requests deferred for one sleeping client.", //
+                        "Default: ${DEFAULT-VALUE}" })
+        public Integer deferredPerEndpoint = DeferredRequestQueue.DEFAULT_MAX_PER_ENDPOINT;
+
+        @Option(names = { "-dqt", "--deferred-queue-total" },
+                description = { //
+                        "Maximum number of requests deferred for all sleeping clients.", //
+                        "Default: ${DEFAULT-VALUE}" })
+        public Integer deferredTotal = DeferredRequestQueue.DEFAULT_MAX_TOTAL;
+
+        @Option(names = { "-cbt", "--circuit-breaker-threshold" },
+                description = { //
+                        "Number of consecutive timeouts after which requests to a device fail fast,", //
+                        "until the device updates its registration or changes presence.", //
+                        "0 disables the circuit breaker.", //
+                        "Default: ${DEFAULT-VALUE}" })
+        public Integer circuitBreakerThreshold = CircuitBreaker.DEFAULT_THRESHOLD;
+
+        @Option(names = { "-tmin", "--min-timeout" },
+                description = { //
+                        "Lower bound in milliseconds of the adaptive request timeout,", //
+                        "computed for each device from its measured round-trip time.", //
+                        "Default: ${DEFAULT-VALUE}" })
+        public Long minTimeout = RttEstimator.DEFAULT_MIN_TIMEOUT;
+
+        @Option(names = { "-tmax", "--max-timeout" },
+                description = { //
+                        "Upper bound in milliseconds of the adaptive request timeout.", //
+                        "Default: ${DEFAULT-VALUE}" })
+        public Long maxTimeout = RttEstimator.DEFAULT_MAX_TIMEOUT;
+
+        @Option(names = { "-cd", "--capture-dir" },
+                description = { //
+                        "Capture all CoAP messages to rotating segment files in this directory.", //
+                        "Captures can be downloaded from /api/capture/download.", //
+                        "Default: CoAP messages are not captured." })
+        public File captureDir;
+
+        @Option(names = { "-css", "--capture-segment-size" },
+                description = { //
+                        "Size in MB of a capture segment file.", //
+                        "Default: ${DEFAULT-VALUE}" })
+        public Integer captureSegmentSize = CoapCapture.DEFAULT_SEGMENT_SIZE;
+
+        @Option(names = { "-csn", "--capture-segments" },
+                description = { //
+                        "Number of capture segment files kept, the oldest one is deleted first.", //
+                        "Default: ${DEFAULT-VALUE}" })
+        public Integer captureSegments = CoapCapture.DEFAULT_MAX_SEGMENTS;
+
+        @Option(names = { "-cep", "--capture-endpoints" },
+                split = ",",
+                description = { //
+                        "Only capture CoAP messages of these endpoints (comma separated).", //
+                        "Can be changed at runtime with PUT /api/capture/filter?ep=...", //
+                        "Default: messages of all peers are captured." })
+        public List<String> captureEndpoints;
     }
 
     /* ********************************** DTLS Section ******************************** */
@@ -105,5 +180,37 @@ public class LeshanServerDemoCLI implements Runnable {
     public void run() {
         // Some post-validation which imply several options or input consolidation.
         identity.build(spec.commandLine());
+
+        if (main.valueCacheSize < 1) {
+            throw new MultiParameterException(spec.commandLine(),
+                    String.format("Invalid value cache size %d : it must be at least 1", main.valueCacheSize), "-vcs");
+        }
+
+        if (main.minTimeout <= 0 || main.maxTimeout < main.minTimeout) {
+            throw new MultiParameterException(spec.commandLine(),
+                    String.format("Invalid timeout bounds [%d, %d] : minimum must be positive and not above maximum",
+                            main.minTimeout, main.maxTimeout),
+                    "-tmin", "-tmax");
+        }
+
+        if (main.captureSegmentSize <= 0 || main.captureSegmentSize > 1024) {
+            throw new MultiParameterException(spec.commandLine(),
+                    String.format("Invalid capture segment size %d MB : it must be between 1 and 1024",
+                            main.captureSegmentSize),
+                    "-css");
+        }
+        if (main.captureSegments <= 0) {
+            throw new MultiParameterException(spec.commandLine(),
+                    String.format("Invalid number of capture segments %d : it must be at least 1",
+                            main.captureSegments),
+                    "-csn");
+        }
+
+        if (main.deferredPerEndpoint <= 0 || main.deferredTotal <= 0) {
+            throw new MultiParameterException(spec.commandLine(),
+                    String.format("Invalid deferred queue sizes (per endpoint %d, total %d) : they must be at least 1",
+                            main.deferredPerEndpoint, main.deferredTotal),
+                    "-dqe", "-dqt");
+        }
     }
 }
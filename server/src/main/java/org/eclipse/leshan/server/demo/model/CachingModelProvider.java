@@ -0,0 +1,201 @@
+/*******************************************************************************
+ * Copyright (c) 2023 Sierra Wireless and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * <p>
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v20.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * <p>
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.demo.model;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.leshan.core.model.LwM2mModel;
+import org.eclipse.leshan.core.model.StaticModel;
+import org.eclipse.leshan.core.observation.Observation;
+import org.eclipse.leshan.server.model.LwM2mModelProvider;
+import org.eclipse.leshan.server.registration.Registration;
+import org.eclipse.leshan.server.registration.RegistrationListener;
+import org.eclipse.leshan.server.registration.RegistrationService;
+import org.eclipse.leshan.server.registration.RegistrationUpdate;
+
+/**
+ * A {@link LwM2mModelProvider} sharing one model between all registrations supporting the same objects in the same
+ * versions.
+ * <p>
+ * The supported objects of a registration are reduced to a canonical key (object ids and versions, sorted by id) and
+ * the model built by the delegate provider for the first registration with this key is kept, as a
+ * {@link StaticModel}, for the others. This expects the delegate model to only depend on the supported objects, as
+ * with {@link org.eclipse.leshan.server.model.VersionedModelProvider}.
+ * <p>
+ * The model of each registration is remembered, so later lookups are a single map access. This needs the
+ * registration service ({@link #setRegistrationService(RegistrationService)}) to forget registrations when they go
+ * away. Models are evicted least recently used first once there are too many distinct keys.
+ */
+public class CachingModelProvider implements LwM2mModelProvider, RegistrationListener {
+
+    // keys come from devices : do not let them grow the cache without limit
+    private static final int MAX_MODELS = 1024;
+
+    private final LwM2mModelProvider delegate;
+    // by access order, guarded by itself
+    private final Map<ModelKey, LwM2mModel> models = new LinkedHashMap<ModelKey, LwM2mModel>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ModelKey, LwM2mModel> eldest) {
+            return size() > MAX_MODELS;
+        }
+    };
+    private final Map<String, RegistrationModel> modelsByRegistration = new ConcurrentHashMap<>();
+    private volatile RegistrationService registrationService;
+
+    public CachingModelProvider(LwM2mModelProvider delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public LwM2mModel getObjectModel(Registration registration) {
+        Map<Integer, ?> supportedObjects = registration.getSupportedObject();
+        RegistrationModel known = modelsByRegistration.get(registration.getId());
+        // registrations are immutable : same supported objects as long as it is not updated with new object links
+        if (known != null && known.supportedObjects == supportedObjects) {
+            return known.model;
+        }
+
+        ModelKey key = ModelKey.of(supportedObjects);
+        LwM2mModel model;
+        synchronized (models) {
+            model = models.get(key);
+        }
+        if (model == null) {
+            LwM2mModel newModel = new StaticModel(delegate.getObjectModel(registration).getObjectModels());
+            synchronized (models) {
+                model = models.putIfAbsent(key, newModel);
+            }
+            if (model == null) {
+                model = newModel;
+            }
+        }
+        remember(registration, new RegistrationModel(supportedObjects, model));
+        return model;
+    }
+
+    /**
+     * Forget registrations when they are replaced or removed.
+     */
+    public void setRegistrationService(RegistrationService registrationService) {
+        this.registrationService = registrationService;
+        registrationService.addListener(this);
+    }
+
+    private void remember(Registration registration, RegistrationModel registrationModel) {
+        RegistrationService registrationService = this.registrationService;
+        if (registrationService == null) {
+            return;
+        }
+        modelsByRegistration.put(registration.getId(), registrationModel);
+        // checked after the put : a registration removed in the meantime is forgotten either here or by the listener
+        if (registrationService.getById(registration.getId()) == null) {
+            modelsByRegistration.remove(registration.getId(), registrationModel);
+        }
+    }
+
+    /**
+     * @return the number of distinct models in use.
+     */
+    public int getModelCount() {
+        synchronized (models) {
+            return models.size();
+        }
+    }
+
+    @Override
+    public void registered(Registration registration, Registration previousReg,
+            Collection<Observation> previousObservations) {
+        if (previousReg != null) {
+            modelsByRegistration.remove(previousReg.getId());
+        }
+    }
+
+    @Override
+    public void updated(RegistrationUpdate update, Registration updatedRegistration,
+            Registration previousRegistration) {
+        if (update.getObjectLinks() != null) {
+            modelsByRegistration.remove(previousRegistration.getId());
+        }
+    }
+
+    @Override
+    public void unregistered(Registration registration, Collection<Observation> observations, boolean expired,
+            Registration newReg) {
+        modelsByRegistration.remove(registration.getId());
+    }
+
+    private static class RegistrationModel {
+        private final Map<Integer, ?> supportedObjects;
+        private final LwM2mModel model;
+
+        RegistrationModel(Map<Integer, ?> supportedObjects, LwM2mModel model) {
+            this.supportedObjects = supportedObjects;
+            this.model = model;
+        }
+    }
+
+    private static class ModelKey {
+
+        private final int[] objectIds;
+        private final String[] versions;
+        private final int hashCode;
+
+        private ModelKey(int[] objectIds, String[] versions) {
+            this.objectIds = objectIds;
+            this.versions = versions;
+            this.hashCode = 31 * Arrays.hashCode(objectIds) + Arrays.hashCode(versions);
+        }
+
+        static ModelKey of(Map<Integer, ?> supportedObjects) {
+            if (supportedObjects == null) {
+                return new ModelKey(new int[0], new String[0]);
+            }
+            int[] objectIds = new int[supportedObjects.size()];
+            int i = 0;
+            for (Integer objectId : supportedObjects.keySet()) {
+                objectIds[i++] = objectId;
+            }
+            Arrays.sort(objectIds);
+            String[] versions = new String[objectIds.length];
+            for (i = 0; i < objectIds.length; i++) {
+                versions[i] = String.valueOf(supportedObjects.get(objectIds[i]));
+            }
+            return new ModelKey(objectIds, versions);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof ModelKey))
+                return false;
+            ModelKey other = (ModelKey) o;
+            return hashCode == other.hashCode && Arrays.equals(objectIds, other.objectIds)
+                    && Arrays.equals(versions, other.versions);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
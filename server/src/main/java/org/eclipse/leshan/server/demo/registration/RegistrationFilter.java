@@ -0,0 +1,125 @@
+/*******************************************************************************
+ * Copyright (c) 2023 Sierra Wireless and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * <p>
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v20.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * <p>
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.demo.registration;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.eclipse.leshan.core.request.BindingMode;
+import org.eclipse.leshan.server.registration.Registration;
+
+/**
+ * Criteria used to select registrations from a {@link RegistrationIndex}. All criteria must match, a
+ * <code>null</code> criterion matches everything.
+ */
+public class RegistrationFilter {
+
+    private String prefix;
+    private String lwM2mVersion;
+    private BindingMode bindingMode;
+    private Boolean queueMode;
+    private Integer objectId;
+    private final Map<String, String> attributes = new HashMap<>();
+
+    public RegistrationFilter prefix(String prefix) {
+        this.prefix = prefix;
+        return this;
+    }
+
+    public RegistrationFilter lwM2mVersion(String lwM2mVersion) {
+        this.lwM2mVersion = lwM2mVersion;
+        return this;
+    }
+
+    public RegistrationFilter bindingMode(BindingMode bindingMode) {
+        this.bindingMode = bindingMode;
+        return this;
+    }
+
+    public RegistrationFilter queueMode(Boolean queueMode) {
+        this.queueMode = queueMode;
+        return this;
+    }
+
+    public RegistrationFilter objectId(Integer objectId) {
+        this.objectId = objectId;
+        return this;
+    }
+
+    public RegistrationFilter attribute(String name, String value) {
+        this.attributes.put(name, value);
+        return this;
+    }
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    public String getLwM2mVersion() {
+        return lwM2mVersion;
+    }
+
+    public BindingMode getBindingMode() {
+        return bindingMode;
+    }
+
+    public Boolean getQueueMode() {
+        return queueMode;
+    }
+
+    public Integer getObjectId() {
+        return objectId;
+    }
+
+    public Map<String, String> getAttributes() {
+        return Collections.unmodifiableMap(attributes);
+    }
+
+    public boolean isEmpty() {
+        return prefix == null && lwM2mVersion == null && bindingMode == null && queueMode == null
+                && objectId == null && attributes.isEmpty();
+    }
+
+    public boolean matches(Registration registration) {
+        if (prefix != null && !registration.getEndpoint().startsWith(prefix)) {
+            return false;
+        }
+        if (lwM2mVersion != null && !lwM2mVersion.equals(registration.getLwM2mVersion().toString())) {
+            return false;
+        }
+        if (bindingMode != null && !registration.getBindingMode().contains(bindingMode)) {
+            return false;
+        }
+        if (queueMode != null && queueMode != registration.usesQueueMode()) {
+            return false;
+        }
+        if (objectId != null && (registration.getSupportedObject() == null
+                || !registration.getSupportedObject().containsKey(objectId))) {
+            return false;
+        }
+        if (!attributes.isEmpty()) {
+            Map<String, String> regAttributes = registration.getAdditionalRegistrationAttributes();
+            for (Entry<String, String> attribute : attributes.entrySet()) {
+                if (regAttributes == null || !attribute.getValue().equals(regAttributes.get(attribute.getKey()))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,301 @@
+/*******************************************************************************
+ * Copyright (c) 2023 Sierra Wireless and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * <p>
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v20.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * <p>
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.demo.registration;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import org.eclipse.leshan.core.observation.Observation;
+import org.eclipse.leshan.core.request.BindingMode;
+import org.eclipse.leshan.server.registration.Registration;
+import org.eclipse.leshan.server.registration.RegistrationListener;
+import org.eclipse.leshan.server.registration.RegistrationService;
+import org.eclipse.leshan.server.registration.RegistrationUpdate;
+
+/**
+ * In-memory secondary indexes over registrations, maintained incrementally from {@link RegistrationListener} events.
+ * <p>
+ * Registrations are kept sorted by endpoint name, and each indexed criterion (LwM2M version, binding mode, queue mode,
+ * supported object, additional attribute) maps to a sorted set of endpoints. A query walks the smallest matching set
+ * in endpoint order, so filtered and paginated queries cost O(log n + page size) whatever the fleet size.
+ * <p>
+ * Writes are serialized (registration events are rare compared to queries), reads are lock-free.
+ */
+public class RegistrationIndex implements RegistrationListener {
+
+    private final ConcurrentNavigableMap<String, Registration> byEndpoint = new ConcurrentSkipListMap<>();
+    private final Map<String, Postings> byVersion = new ConcurrentHashMap<>();
+    private final Map<BindingMode, Postings> byBindingMode = new ConcurrentHashMap<>();
+    private final Postings queueMode = new Postings();
+    private final Map<Integer, Postings> byObjectId = new ConcurrentHashMap<>();
+    private final Map<String, Postings> byAttribute = new ConcurrentHashMap<>();
+
+    public RegistrationIndex(RegistrationService registrationService) {
+        // listen first so nothing is missed while loading already existing registrations
+        registrationService.addListener(this);
+        for (Iterator<Registration> it = registrationService.getAllRegistrations(); it.hasNext();) {
+            Registration registration = it.next();
+            synchronized (this) {
+                if (!byEndpoint.containsKey(registration.getEndpoint())) {
+                    add(registration);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void registered(Registration registration, Registration previousReg,
+            Collection<Observation> previousObservations) {
+        replace(registration);
+    }
+
+    @Override
+    public void updated(RegistrationUpdate update, Registration updatedRegistration,
+            Registration previousRegistration) {
+        replace(updatedRegistration);
+    }
+
+    @Override
+    public synchronized void unregistered(Registration registration, Collection<Observation> observations,
+            boolean expired, Registration newReg) {
+        Registration current = byEndpoint.get(registration.getEndpoint());
+        // ignore late event of an old registration replaced in the meantime
+        if (current != null && current.getId().equals(registration.getId())) {
+            remove(current);
+        }
+    }
+
+    private synchronized void replace(Registration registration) {
+        Registration current = byEndpoint.get(registration.getEndpoint());
+        if (current != null) {
+            remove(current);
+        }
+        add(registration);
+    }
+
+    private void add(Registration registration) {
+        String endpoint = registration.getEndpoint();
+        byEndpoint.put(endpoint, registration);
+        postings(byVersion, registration.getLwM2mVersion().toString()).add(endpoint);
+        for (BindingMode bindingMode : registration.getBindingMode()) {
+            postings(byBindingMode, bindingMode).add(endpoint);
+        }
+        if (registration.usesQueueMode()) {
+            queueMode.add(endpoint);
+        }
+        if (registration.getSupportedObject() != null) {
+            for (Integer objectId : registration.getSupportedObject().keySet()) {
+                postings(byObjectId, objectId).add(endpoint);
+            }
+        }
+        if (registration.getAdditionalRegistrationAttributes() != null) {
+            for (Entry<String, String> attribute : registration.getAdditionalRegistrationAttributes().entrySet()) {
+                postings(byAttribute, attributeKey(attribute.getKey(), attribute.getValue())).add(endpoint);
+            }
+        }
+    }
+
+    private void remove(Registration registration) {
+        String endpoint = registration.getEndpoint();
+        byEndpoint.remove(endpoint);
+        unindex(byVersion, registration.getLwM2mVersion().toString(), endpoint);
+        for (BindingMode bindingMode : registration.getBindingMode()) {
+            unindex(byBindingMode, bindingMode, endpoint);
+        }
+        queueMode.remove(endpoint);
+        if (registration.getSupportedObject() != null) {
+            for (Integer objectId : registration.getSupportedObject().keySet()) {
+                unindex(byObjectId, objectId, endpoint);
+            }
+        }
+        if (registration.getAdditionalRegistrationAttributes() != null) {
+            for (Entry<String, String> attribute : registration.getAdditionalRegistrationAttributes().entrySet()) {
+                unindex(byAttribute, attributeKey(attribute.getKey(), attribute.getValue()), endpoint);
+            }
+        }
+    }
+
+    private static <K> Postings postings(Map<K, Postings> index, K key) {
+        return index.computeIfAbsent(key, k -> new Postings());
+    }
+
+    private static <K> void unindex(Map<K, Postings> index, K key, String endpoint) {
+        Postings postings = index.get(key);
+        if (postings != null) {
+            postings.remove(endpoint);
+            if (postings.size() == 0) {
+                index.remove(key);
+            }
+        }
+    }
+
+    private static String attributeKey(String name, String value) {
+        return name + '\u0000' + value;
+    }
+
+    /**
+     * @return the number of indexed registrations.
+     */
+    public int size() {
+        return byEndpoint.size();
+    }
+
+    /**
+     * Find registrations matching the given filter.
+     *
+     * @param filter the criteria, an empty filter matches all registrations.
+     * @param after only return registrations with an endpoint name strictly greater than this one, may be
+     *        <code>null</code>.
+     * @return a lazy iterator over matching registrations ordered by endpoint name.
+     */
+    public Iterator<Registration> find(RegistrationFilter filter, String after) {
+        String prefix = filter.getPrefix();
+
+        // lower bound of the endpoint range to walk
+        String from = after;
+        boolean inclusive = false;
+        if (prefix != null && (from == null || prefix.compareTo(from) > 0)) {
+            from = prefix;
+            inclusive = true;
+        }
+
+        // walk the most selective index
+        List<Postings> candidates = new ArrayList<>();
+        if (filter.getLwM2mVersion() != null) {
+            candidates.add(byVersion.get(filter.getLwM2mVersion()));
+        }
+        if (filter.getBindingMode() != null) {
+            candidates.add(byBindingMode.get(filter.getBindingMode()));
+        }
+        if (Boolean.TRUE.equals(filter.getQueueMode())) {
+            candidates.add(queueMode);
+        }
+        if (filter.getObjectId() != null) {
+            candidates.add(byObjectId.get(filter.getObjectId()));
+        }
+        for (Entry<String, String> attribute : filter.getAttributes().entrySet()) {
+            candidates.add(byAttribute.get(attributeKey(attribute.getKey(), attribute.getValue())));
+        }
+
+        Iterator<String> endpoints;
+        if (candidates.isEmpty()) {
+            NavigableSet<String> keys = byEndpoint.keySet();
+            endpoints = (from == null ? keys : keys.tailSet(from, inclusive)).iterator();
+        } else {
+            Postings smallest = null;
+            for (Postings candidate : candidates) {
+                if (candidate == null) {
+                    // nobody matches this criterion
+                    return Collections.emptyIterator();
+                }
+                if (smallest == null || candidate.size() < smallest.size()) {
+                    smallest = candidate;
+                }
+            }
+            endpoints = smallest.from(from, inclusive);
+        }
+        return new MatchingIterator(endpoints, filter);
+    }
+
+    /**
+     * Resolve endpoints to registrations and check all criteria. Stops as soon as the endpoint prefix does not match
+     * anymore as endpoints are sorted.
+     */
+    private class MatchingIterator implements Iterator<Registration> {
+
+        private final Iterator<String> endpoints;
+        private final RegistrationFilter filter;
+        private Registration next;
+        private boolean done;
+
+        MatchingIterator(Iterator<String> endpoints, RegistrationFilter filter) {
+            this.endpoints = endpoints;
+            this.filter = filter;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && !done) {
+                if (!endpoints.hasNext()) {
+                    done = true;
+                    break;
+                }
+                String endpoint = endpoints.next();
+                if (filter.getPrefix() != null && !endpoint.startsWith(filter.getPrefix())) {
+                    done = true;
+                    break;
+                }
+                Registration registration = byEndpoint.get(endpoint);
+                if (registration != null && filter.matches(registration)) {
+                    next = registration;
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public Registration next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Registration current = next;
+            next = null;
+            return current;
+        }
+    }
+
+    /**
+     * Sorted set of endpoints with a constant time size (size of {@link ConcurrentSkipListSet} is linear).
+     */
+    private static class Postings {
+
+        private final ConcurrentSkipListSet<String> endpoints = new ConcurrentSkipListSet<>();
+        private volatile int size;
+
+        // only called while holding the index lock
+        void add(String endpoint) {
+            if (endpoints.add(endpoint)) {
+                size++;
+            }
+        }
+
+        // only called while holding the index lock
+        void remove(String endpoint) {
+            if (endpoints.remove(endpoint)) {
+                size--;
+            }
+        }
+
+        int size() {
+            return size;
+        }
+
+        Iterator<String> from(String from, boolean inclusive) {
+            return (from == null ? endpoints : endpoints.tailSet(from, inclusive)).iterator();
+        }
+    }
+}
@@ -0,0 +1,240 @@
+/*******************************************************************************
+ * Copyright (c) 2023 Sierra Wireless and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * <p>
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v20.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * <p>
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.demo.request;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.leshan.core.observation.Observation;
+import org.eclipse.leshan.core.request.DownlinkRequest;
+import org.eclipse.leshan.core.request.exception.TimeoutException;
+import org.eclipse.leshan.core.response.ErrorCallback;
+import org.eclipse.leshan.core.response.LwM2mResponse;
+import org.eclipse.leshan.core.response.ResponseCallback;
+import org.eclipse.leshan.server.californium.LeshanServer;
+import org.eclipse.leshan.server.queue.PresenceListener;
+import org.eclipse.leshan.server.registration.Registration;
+import org.eclipse.leshan.server.registration.RegistrationListener;
+import org.eclipse.leshan.server.registration.RegistrationUpdate;
+
+/**
+ * Per endpoint circuit breaker protecting the server from devices which went silent without deregistering.
+ * <p>
+ * After <code>threshold</code> consecutive timeouts the circuit of the endpoint opens : requests fail immediately
+ * with a {@link CircuitOpenException} instead of waiting for the full timeout and CoAP retransmissions. The circuit
+ * goes half-open on the next sign of life of the device (registration update or presence change), then the next
+ * request is sent as a probe : a response closes the circuit, a timeout opens it again.
+ * <p>
+ * Any response, even an error code, proves the device is reachable and resets the timeout count.
+ * <p>
+ * Response times and timeouts of sent requests are also reported to the {@link RttEstimator}, response times only as a
+ * latency statistic.
+ */
+public class CircuitBreaker {
+
+    public static final int DEFAULT_THRESHOLD = 3;
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final LeshanServer server;
+    private final int threshold;
+    private final RttEstimator rttEstimator;
+    private final Map<String, Circuit> circuits = new ConcurrentHashMap<>();
+
+    private final PresenceListener presenceListener = new PresenceListener() {
+
+        @Override
+        public void onSleeping(Registration registration) {
+            halfOpen(registration.getEndpoint());
+        }
+
+        @Override
+        public void onAwake(Registration registration) {
+            halfOpen(registration.getEndpoint());
+        }
+    };
+
+    private final RegistrationListener registrationListener = new RegistrationListener() {
+
+        @Override
+        public void registered(Registration registration, Registration previousReg,
+                Collection<Observation> previousObservations) {
+            // new registration, new session : start from scratch
+            circuits.remove(registration.getEndpoint());
+        }
+
+        @Override
+        public void updated(RegistrationUpdate update, Registration updatedRegistration,
+                Registration previousRegistration) {
+            halfOpen(updatedRegistration.getEndpoint());
+        }
+
+        @Override
+        public void unregistered(Registration registration, Collection<Observation> observations, boolean expired,
+                Registration newReg) {
+            if (newReg == null) {
+                circuits.remove(registration.getEndpoint());
+            }
+        }
+    };
+
+    /**
+     * @param threshold number of consecutive timeouts opening the circuit, <code>0</code> disables the breaker.
+     */
+    public CircuitBreaker(LeshanServer server, int threshold, RttEstimator rttEstimator) {
+        this.server = server;
+        this.threshold = threshold;
+        this.rttEstimator = rttEstimator;
+
+        server.getPresenceService().addListener(presenceListener);
+        server.getRegistrationService().addListener(registrationListener);
+    }
+
+    /**
+     * Same as {@link LeshanServer#send(Registration, DownlinkRequest, long, ResponseCallback, ErrorCallback)} but fails
+     * fast if the circuit of the destination is open.
+     *
+     * @throws CircuitOpenException if the circuit is open.
+     */
+    public <T extends LwM2mResponse> void send(Registration destination, DownlinkRequest<T> request, long timeoutInMs,
+            ResponseCallback<T> responseCallback, ErrorCallback errorCallback) {
+        String endpoint = destination.getEndpoint();
+        Circuit circuit = threshold > 0 ? circuits.computeIfAbsent(endpoint, k -> new Circuit()) : Circuit.DISABLED;
+        if (!circuit.tryAcquire()) {
+            throw new CircuitOpenException(retryAfter(destination),
+                    "circuit open for %s after %d consecutive timeouts", endpoint, threshold);
+        }
+        long start = System.nanoTime();
+        try {
+            server.send(destination, request, timeoutInMs, //
+                    response -> {
+                        circuit.onSuccess();
+                        rttEstimator.onResponse(endpoint, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                        responseCallback.onResponse(response);
+                    }, //
+                    e -> {
+                        if (e instanceof TimeoutException) {
+                            circuit.onTimeout(threshold);
+                            rttEstimator.onTimeout(endpoint);
+                        } else {
+                            circuit.onOtherError();
+                        }
+                        errorCallback.onError(e);
+                    });
+        } catch (RuntimeException e) {
+            circuit.onOtherError();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the state of the circuit of the given endpoint.
+     */
+    public State getState(String endpoint) {
+        Circuit circuit = circuits.get(endpoint);
+        return circuit == null ? State.CLOSED : circuit.getState();
+    }
+
+    private void halfOpen(String endpoint) {
+        Circuit circuit = circuits.get(endpoint);
+        if (circuit != null) {
+            circuit.halfOpen();
+        }
+    }
+
+    /**
+     * The device is expected to show up at the latest when it updates its registration.
+     */
+    private static long retryAfter(Registration registration) {
+        long expectedUpdate = registration.getLastUpdate().getTime() + registration.getLifeTimeInSec() * 1000;
+        return Math.max(1, (expectedUpdate - System.currentTimeMillis()) / 1000);
+    }
+
+    private static class Circuit {
+        // shared by all endpoints when the breaker is disabled, never leaves the CLOSED state
+        static final Circuit DISABLED = new Circuit() {
+            @Override
+            boolean tryAcquire() {
+                return true;
+            }
+
+            @Override
+            void onSuccess() {
+            }
+
+            @Override
+            void onTimeout(int threshold) {
+            }
+
+            @Override
+            void onOtherError() {
+            }
+        };
+
+        // guarded by "this"
+        private State state = State.CLOSED;
+        private int consecutiveTimeouts;
+        private boolean probeInFlight;
+
+        synchronized State getState() {
+            return state;
+        }
+
+        synchronized boolean tryAcquire() {
+            switch (state) {
+            case CLOSED:
+                return true;
+            case HALF_OPEN:
+                // let only one probe through
+                if (probeInFlight) {
+                    return false;
+                }
+                probeInFlight = true;
+                return true;
+            default:
+                return false;
+            }
+        }
+
+        synchronized void onSuccess() {
+            state = State.CLOSED;
+            consecutiveTimeouts = 0;
+            probeInFlight = false;
+        }
+
+        synchronized void onTimeout(int threshold) {
+            consecutiveTimeouts++;
+            probeInFlight = false;
+            if (state == State.HALF_OPEN || consecutiveTimeouts >= threshold) {
+                state = State.OPEN;
+            }
+        }
+
+        synchronized void onOtherError() {
+            probeInFlight = false;
+        }
+
+        synchronized void halfOpen() {
+            if (state == State.OPEN) {
+                state = State.HALF_OPEN;
+            }
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/*******************************************************************************
+ * Copyright (c) 2023 Sierra Wireless and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * <p>
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v20.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * <p>
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.demo.request;
+
+/**
+ * Raised instead of sending a request to a device whose circuit breaker is open.
+ */
+public class CircuitOpenException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long retryAfter;
+
+    public CircuitOpenException(long retryAfter, String message, Object... args) {
+        super(String.format(message, args));
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * @return the number of seconds after which the device is expected to be reachable again.
+     */
+    public long getRetryAfter() {
+        return retryAfter;
+    }
+}
@@ -0,0 +1,128 @@
+/*******************************************************************************
+ * Copyright (c) 2023 Sierra Wireless and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * <p>
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v20.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * <p>
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.demo.request;
+
+import java.util.UUID;
+
+import org.eclipse.leshan.core.request.DownlinkRequest;
+import org.eclipse.leshan.core.response.LwM2mResponse;
+
+/**
+ * A request deferred until its (queue mode) client wakes up.
+ */
+public class DeferredJob {
+
+    public enum State {
+        PENDING, SENT, SUCCESS, FAILED, EXPIRED, CANCELLED;
+
+        public boolean isFinal() {
+            return this != PENDING && this != SENT;
+        }
+    }
+
+    private final String id;
+    private final String endpoint;
+    private final DownlinkRequest<? extends LwM2mResponse> request;
+    private final long timeoutInMs;
+    private final long creationTime;
+    private final long expirationTime;
+    private final String callbackUrl;
+
+    // guarded by "this"
+    private State state = State.PENDING;
+    private LwM2mResponse response;
+    private String error;
+    private long completionTime;
+
+    public DeferredJob(String endpoint, DownlinkRequest<? extends LwM2mResponse> request, long timeoutInMs,
+            long ttlInMs, String callbackUrl) {
+        this.id = UUID.randomUUID().toString();
+        this.endpoint = endpoint;
+        this.request = request;
+        this.timeoutInMs = timeoutInMs;
+        this.creationTime = System.currentTimeMillis();
+        this.expirationTime = creationTime + ttlInMs;
+        this.callbackUrl = callbackUrl;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    public DownlinkRequest<? extends LwM2mResponse> getRequest() {
+        return request;
+    }
+
+    public long getTimeoutInMs() {
+        return timeoutInMs;
+    }
+
+    public long getCreationTime() {
+        return creationTime;
+    }
+
+    public long getExpirationTime() {
+        return expirationTime;
+    }
+
+    public String getCallbackUrl() {
+        return callbackUrl;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized LwM2mResponse getResponse() {
+        return response;
+    }
+
+    public synchronized String getError() {
+        return error;
+    }
+
+    public synchronized long getCompletionTime() {
+        return completionTime;
+    }
+
+    boolean isExpired(long now) {
+        return now > expirationTime;
+    }
+
+    synchronized void setState(State state) {
+        this.state = state;
+    }
+
+    /**
+     * Move the job to a final state.
+     *
+     * @return <code>false</code> if the job was already in a final state.
+     */
+    synchronized boolean complete(State state, LwM2mResponse response, String error) {
+        if (this.state.isFinal()) {
+            return false;
+        }
+        this.state = state;
+        this.response = response;
+        this.error = error;
+        this.completionTime = System.currentTimeMillis();
+        return true;
+    }
+}
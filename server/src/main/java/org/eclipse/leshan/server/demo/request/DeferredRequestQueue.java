@@ -0,0 +1,405 @@
+/*******************************************************************************
+ * Copyright (c) 2023 Sierra Wireless and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * <p>
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v20.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * <p>
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.demo.request;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.leshan.core.observation.Observation;
+import org.eclipse.leshan.core.request.DownlinkRequest;
+import org.eclipse.leshan.core.request.exception.ClientSleepingException;
+import org.eclipse.leshan.core.response.LwM2mResponse;
+import org.eclipse.leshan.core.util.NamedThreadFactory;
+import org.eclipse.leshan.server.californium.LeshanServer;
+import org.eclipse.leshan.server.demo.cache.LastKnownValueCache;
+import org.eclipse.leshan.server.queue.PresenceListener;
+import org.eclipse.leshan.server.registration.Registration;
+import org.eclipse.leshan.server.registration.RegistrationListener;
+import org.eclipse.leshan.server.registration.RegistrationUpdate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Per endpoint in-memory queues of requests waiting for a sleeping (queue mode) client to wake up.
+ * <p>
+ * Requests are drained in order, one at a time, as soon as the client is known to be awake (
+ * {@link PresenceListener#onAwake(Registration)}, registration or registration update). Pending requests expire after
+ * their TTL. Memory is bounded per endpoint and globally : finished jobs are kept for a retention period so their
+ * result can be polled, but no more than the pending limits, the oldest finished jobs being forgotten first.
+ */
+public class DeferredRequestQueue {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DeferredRequestQueue.class);
+
+    public static final int DEFAULT_MAX_PER_ENDPOINT = 16;
+    public static final int DEFAULT_MAX_TOTAL = 10_000;
+    private static final long RETENTION_PERIOD = 10 * 60 * 1000; // ms
+    private static final long SWEEP_PERIOD = 5; // s
+
+    private final LeshanServer server;
+    private final LastKnownValueCache valueCache;
+    private final int maxPerEndpoint;
+    private final int maxTotal;
+
+    private final Map<String, EndpointQueue> queues = new ConcurrentHashMap<>();
+    private final Map<String, DeferredJob> jobs = new ConcurrentHashMap<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    // finished jobs still in "jobs", by completion order, guarded by "retained"
+    private final LinkedHashSet<DeferredJob> retained = new LinkedHashSet<>();
+    private final Map<String, Deque<DeferredJob>> retainedByEndpoint = new HashMap<>();
+    private final List<DeferredJobListener> listeners = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService scheduler;
+
+    private final PresenceListener presenceListener = new PresenceListener() {
+
+        @Override
+        public void onSleeping(Registration registration) {
+        }
+
+        @Override
+        public void onAwake(Registration registration) {
+            drain(registration);
+        }
+    };
+
+    private final RegistrationListener registrationListener = new RegistrationListener() {
+
+        @Override
+        public void registered(Registration registration, Registration previousReg,
+                Collection<Observation> previousObservations) {
+            drain(registration);
+        }
+
+        @Override
+        public void updated(RegistrationUpdate update, Registration updatedRegistration,
+                Registration previousRegistration) {
+            drain(updatedRegistration);
+        }
+
+        @Override
+        public void unregistered(Registration registration, Collection<Observation> observations, boolean expired,
+                Registration newReg) {
+            if (newReg == null) {
+                cancel(registration.getEndpoint(), DeferredJob.State.FAILED, "client deregistered");
+            }
+        }
+    };
+
+    public DeferredRequestQueue(LeshanServer server, LastKnownValueCache valueCache, int maxPerEndpoint,
+            int maxTotal) {
+        this.server = server;
+        this.valueCache = valueCache;
+        this.maxPerEndpoint = maxPerEndpoint;
+        this.maxTotal = maxTotal;
+
+        server.getPresenceService().addListener(presenceListener);
+        server.getRegistrationService().addListener(registrationListener);
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("Deferred Request Queue"));
+        scheduler.scheduleAtFixedRate(this::sweep, SWEEP_PERIOD, SWEEP_PERIOD, TimeUnit.SECONDS);
+    }
+
+    public void addListener(DeferredJobListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(DeferredJobListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Queue a job for its endpoint.
+     *
+     * @throws QueueFullException if the endpoint queue or the global queue is full.
+     */
+    public DeferredJob enqueue(DeferredJob job) {
+        if (pendingCount.incrementAndGet() > maxTotal) {
+            pendingCount.decrementAndGet();
+            throw new QueueFullException("too many deferred requests (max %d)", maxTotal);
+        }
+        queues.compute(job.getEndpoint(), (endpoint, queue) -> {
+            if (queue == null) {
+                queue = new EndpointQueue();
+            }
+            synchronized (queue) {
+                if (queue.pending.size() >= maxPerEndpoint) {
+                    pendingCount.decrementAndGet();
+                    throw new QueueFullException("too many deferred requests for %s (max %d)", endpoint,
+                            maxPerEndpoint);
+                }
+                queue.pending.addLast(job);
+            }
+            return queue;
+        });
+        jobs.put(job.getId(), job);
+
+        // the client may have woken up in the meantime
+        Registration registration = server.getRegistrationService().getByEndpoint(job.getEndpoint());
+        if (registration != null && server.getPresenceService().isClientAwake(registration)) {
+            drain(registration);
+        }
+        return job;
+    }
+
+    public DeferredJob getJob(String id) {
+        return jobs.get(id);
+    }
+
+    /**
+     * Cancel a pending job.
+     *
+     * @return <code>false</code> if the job is unknown or no more pending.
+     */
+    public boolean cancel(String id) {
+        DeferredJob job = jobs.get(id);
+        if (job == null) {
+            return false;
+        }
+        EndpointQueue queue = queues.get(job.getEndpoint());
+        if (queue == null) {
+            return false;
+        }
+        synchronized (queue) {
+            if (!queue.pending.remove(job)) {
+                return false;
+            }
+        }
+        pendingCount.decrementAndGet();
+        complete(job, DeferredJob.State.CANCELLED, null, "cancelled");
+        removeIfIdle(job.getEndpoint());
+        return true;
+    }
+
+    /**
+     * @return the number of pending requests for all endpoints.
+     */
+    public int getPendingCount() {
+        return pendingCount.get();
+    }
+
+    /**
+     * @return the number of pending requests by endpoint.
+     */
+    public Map<String, Integer> getQueueDepths() {
+        Map<String, Integer> depths = new TreeMap<>();
+        for (Map.Entry<String, EndpointQueue> entry : queues.entrySet()) {
+            synchronized (entry.getValue()) {
+                int depth = entry.getValue().pending.size();
+                if (depth > 0) {
+                    depths.put(entry.getKey(), depth);
+                }
+            }
+        }
+        return depths;
+    }
+
+    public void destroy() {
+        scheduler.shutdownNow();
+    }
+
+    private void drain(Registration registration) {
+        EndpointQueue queue = queues.get(registration.getEndpoint());
+        if (queue == null) {
+            return;
+        }
+        DeferredJob job;
+        synchronized (queue) {
+            if (queue.draining) {
+                return;
+            }
+            job = queue.pending.pollFirst();
+            if (job == null) {
+                return;
+            }
+            queue.draining = true;
+            pendingCount.decrementAndGet();
+        }
+
+        if (job.isExpired(System.currentTimeMillis())) {
+            complete(job, DeferredJob.State.EXPIRED, null, "expired before client woke up");
+            next(registration, queue);
+            return;
+        }
+        send(registration, queue, job);
+    }
+
+    private <T extends LwM2mResponse> void send(Registration registration, EndpointQueue queue, DeferredJob job) {
+        @SuppressWarnings("unchecked")
+        DownlinkRequest<T> request = (DownlinkRequest<T>) job.getRequest();
+        job.setState(DeferredJob.State.SENT);
+        try {
+            server.send(registration, request, job.getTimeoutInMs(), response -> {
+                valueCache.onResponse(registration, request, response);
+                complete(job, DeferredJob.State.SUCCESS, response, null);
+                next(registration, queue);
+            }, e -> onError(registration, queue, job, e));
+        } catch (RuntimeException e) {
+            onError(registration, queue, job, e);
+        }
+    }
+
+    private void onError(Registration registration, EndpointQueue queue, DeferredJob job, Exception e) {
+        if (e instanceof ClientSleepingException) {
+            // client fell asleep again : put the job back and wait for next wake up
+            job.setState(DeferredJob.State.PENDING);
+            synchronized (queue) {
+                queue.pending.addFirst(job);
+                queue.draining = false;
+            }
+            pendingCount.incrementAndGet();
+            return;
+        }
+        complete(job, DeferredJob.State.FAILED, null, e.getMessage() != null ? e.getMessage() : e.toString());
+        next(registration, queue);
+    }
+
+    private void next(Registration registration, EndpointQueue queue) {
+        synchronized (queue) {
+            queue.draining = false;
+        }
+        removeIfIdle(registration.getEndpoint());
+        drain(registration);
+    }
+
+    private void cancel(String endpoint, DeferredJob.State state, String reason) {
+        EndpointQueue queue = queues.get(endpoint);
+        if (queue == null) {
+            return;
+        }
+        Deque<DeferredJob> cancelled;
+        synchronized (queue) {
+            cancelled = new ArrayDeque<>(queue.pending);
+            queue.pending.clear();
+        }
+        pendingCount.addAndGet(-cancelled.size());
+        for (DeferredJob job : cancelled) {
+            complete(job, state, null, reason);
+        }
+        removeIfIdle(endpoint);
+    }
+
+    private void complete(DeferredJob job, DeferredJob.State state, LwM2mResponse response, String error) {
+        if (job.complete(state, response, error)) {
+            retain(job);
+            for (DeferredJobListener listener : listeners) {
+                try {
+                    listener.completed(job);
+                } catch (RuntimeException e) {
+                    LOG.warn("Deferred job listener failed for job {}", job.getId(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Keep a finished job so its result can be polled, forgetting the oldest finished jobs beyond the limits.
+     */
+    private void retain(DeferredJob job) {
+        synchronized (retained) {
+            retained.add(job);
+            Deque<DeferredJob> endpointJobs = retainedByEndpoint.computeIfAbsent(job.getEndpoint(),
+                    ep -> new ArrayDeque<>());
+            endpointJobs.addLast(job);
+            if (endpointJobs.size() > maxPerEndpoint) {
+                forget(endpointJobs.peekFirst());
+            }
+            if (retained.size() > maxTotal) {
+                forget(retained.iterator().next());
+            }
+        }
+    }
+
+    // called with "retained" lock
+    private void forget(DeferredJob job) {
+        retained.remove(job);
+        Deque<DeferredJob> endpointJobs = retainedByEndpoint.get(job.getEndpoint());
+        if (endpointJobs != null) {
+            endpointJobs.removeFirstOccurrence(job);
+            if (endpointJobs.isEmpty()) {
+                retainedByEndpoint.remove(job.getEndpoint());
+            }
+        }
+        jobs.remove(job.getId(), job);
+    }
+
+    private void removeIfIdle(String endpoint) {
+        queues.computeIfPresent(endpoint, (ep, queue) -> {
+            synchronized (queue) {
+                return queue.pending.isEmpty() && !queue.draining ? null : queue;
+            }
+        });
+    }
+
+    /**
+     * Expire pending jobs which reached their TTL and forget finished jobs after the retention period.
+     */
+    private void sweep() {
+        try {
+            long now = System.currentTimeMillis();
+            for (Map.Entry<String, EndpointQueue> entry : queues.entrySet()) {
+                EndpointQueue queue = entry.getValue();
+                Deque<DeferredJob> expired = new ArrayDeque<>();
+                synchronized (queue) {
+                    for (Iterator<DeferredJob> it = queue.pending.iterator(); it.hasNext();) {
+                        DeferredJob job = it.next();
+                        if (job.isExpired(now)) {
+                            it.remove();
+                            expired.add(job);
+                        }
+                    }
+                }
+                if (!expired.isEmpty()) {
+                    pendingCount.addAndGet(-expired.size());
+                    for (DeferredJob job : expired) {
+                        complete(job, DeferredJob.State.EXPIRED, null, "expired before client woke up");
+                    }
+                    removeIfIdle(entry.getKey());
+                }
+            }
+            synchronized (retained) {
+                // by completion order : stop at the first job still in its retention period
+                while (!retained.isEmpty()) {
+                    DeferredJob oldest = retained.iterator().next();
+                    if (now - oldest.getCompletionTime() <= RETENTION_PERIOD) {
+                        break;
+                    }
+                    forget(oldest);
+                }
+            }
+        } catch (RuntimeException e) {
+            LOG.warn("Unexpected error while sweeping deferred requests", e);
+        }
+    }
+
+    private static class EndpointQueue {
+        // guarded by "this"
+        private final Deque<DeferredJob> pending = new ArrayDeque<>();
+        private boolean draining;
+    }
+}
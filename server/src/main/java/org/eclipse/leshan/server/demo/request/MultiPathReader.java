@@ -0,0 +1,278 @@
+/*******************************************************************************
+ * Copyright (c) 2023 Sierra Wireless and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * <p>
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v20.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * <p>
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.demo.request;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.eclipse.leshan.core.ResponseCode;
+import org.eclipse.leshan.core.node.LwM2mNode;
+import org.eclipse.leshan.core.node.LwM2mPath;
+import org.eclipse.leshan.core.request.ContentFormat;
+import org.eclipse.leshan.core.request.ReadCompositeRequest;
+import org.eclipse.leshan.core.request.ReadRequest;
+import org.eclipse.leshan.core.response.ReadCompositeResponse;
+import org.eclipse.leshan.core.response.ReadResponse;
+import org.eclipse.leshan.server.demo.cache.LastKnownValueCache;
+import org.eclipse.leshan.server.registration.Registration;
+
+/**
+ * Read several paths of a device at once.
+ * <p>
+ * When the registration allows it (LwM2M 1.1 or later, SenML JSON or SenML CBOR supported), all paths are read with
+ * one Read-Composite request. Otherwise, or if the device rejects the Read-Composite request, paths are read with
+ * single Read requests, pipelined with a small window to not overwhelm constrained devices.
+ */
+public class MultiPathReader {
+
+    public static final int DEFAULT_PIPELINE_DEPTH = 4;
+
+    public enum Mode {
+        COMPOSITE, SINGLE
+    }
+
+    private final RequestCoalescer coalescer;
+    private final LastKnownValueCache valueCache;
+    private final int pipelineDepth;
+
+    public MultiPathReader(RequestCoalescer coalescer, LastKnownValueCache valueCache, int pipelineDepth) {
+        this.coalescer = coalescer;
+        this.valueCache = valueCache;
+        this.pipelineDepth = pipelineDepth;
+    }
+
+    /**
+     * @return the longest time a read of the given number of paths can take, in the worst case where the
+     *         Read-Composite request times out and then all single reads time out.
+     */
+    public long maxDuration(int pathCount, long timeoutInMs) {
+        long rounds = (pathCount + pipelineDepth - 1) / pipelineDepth;
+        return timeoutInMs * (1 + rounds);
+    }
+
+    /**
+     * Read all given paths.
+     *
+     * @param format the content format to use, <code>null</code> to let the reader choose.
+     * @param callback called once with the merged result of all paths.
+     */
+    public void read(Registration registration, List<LwM2mPath> paths, ContentFormat format, long timeoutInMs,
+            Consumer<Result> callback) {
+        List<LwM2mPath> distinctPaths = new ArrayList<>(new LinkedHashSet<>(paths));
+        ContentFormat compositeFormat = compositeFormat(registration, format);
+        if (compositeFormat != null && distinctPaths.size() > 1) {
+            readComposite(registration, distinctPaths, compositeFormat, format, timeoutInMs, callback);
+        } else {
+            new Pipeline(registration, distinctPaths, format, timeoutInMs, callback).start();
+        }
+    }
+
+    private void readComposite(Registration registration, List<LwM2mPath> paths, ContentFormat compositeFormat,
+            ContentFormat format, long timeoutInMs, Consumer<Result> callback) {
+        List<String> stringPaths = new ArrayList<>(paths.size());
+        for (LwM2mPath path : paths) {
+            stringPaths.add(path.toString());
+        }
+        ReadCompositeRequest request = new ReadCompositeRequest(compositeFormat, compositeFormat, stringPaths);
+        try {
+            coalescer.send(registration, request, timeoutInMs, response -> {
+                if (response.isSuccess()) {
+                    valueCache.onResponse(registration, request, response);
+                    callback.accept(fromComposite(paths, response));
+                } else if (isUnsupported(response.getCode())) {
+                    // device does not really support Read-Composite
+                    new Pipeline(registration, paths, format, timeoutInMs, callback).start();
+                } else {
+                    Result result = new Result(Mode.COMPOSITE);
+                    for (LwM2mPath path : paths) {
+                        result.errors.put(path, errorOf(response.getCode(), response.getErrorMessage()));
+                    }
+                    callback.accept(result);
+                }
+            }, e -> callback.accept(failed(Mode.COMPOSITE, paths, e)));
+        } catch (RuntimeException e) {
+            callback.accept(failed(Mode.COMPOSITE, paths, e));
+        }
+    }
+
+    private static ContentFormat compositeFormat(Registration registration, ContentFormat requested) {
+        if ("1.0".equals(registration.getLwM2mVersion().toString())) {
+            return null;
+        }
+        Set<ContentFormat> supported = registration.getSupportedContentFormats();
+        if (supported == null) {
+            return null;
+        }
+        if (requested != null) {
+            return (ContentFormat.SENML_CBOR.equals(requested) || ContentFormat.SENML_JSON.equals(requested))
+                    && supported.contains(requested) ? requested : null;
+        } else if (supported.contains(ContentFormat.SENML_CBOR)) {
+            return ContentFormat.SENML_CBOR;
+        } else if (supported.contains(ContentFormat.SENML_JSON)) {
+            return ContentFormat.SENML_JSON;
+        }
+        return null;
+    }
+
+    private static boolean isUnsupported(ResponseCode code) {
+        return ResponseCode.METHOD_NOT_ALLOWED.equals(code) || ResponseCode.NOT_ACCEPTABLE.equals(code)
+                || ResponseCode.UNSUPPORTED_CONTENT_FORMAT.equals(code);
+    }
+
+    private static Result fromComposite(List<LwM2mPath> paths, ReadCompositeResponse response) {
+        Result result = new Result(Mode.COMPOSITE);
+        Map<LwM2mPath, LwM2mNode> content = response.getContent();
+        for (LwM2mPath path : paths) {
+            LwM2mNode node = content == null ? null : content.get(path);
+            if (node != null) {
+                result.content.put(path, node);
+            } else {
+                result.errors.put(path, errorOf(ResponseCode.NOT_FOUND, null));
+            }
+        }
+        return result;
+    }
+
+    private static Result failed(Mode mode, List<LwM2mPath> paths, Exception e) {
+        Result result = new Result(mode);
+        for (LwM2mPath path : paths) {
+            result.errors.put(path, errorOf(e));
+        }
+        return result;
+    }
+
+    private static String errorOf(ResponseCode code, String message) {
+        return message == null || message.isEmpty() ? code.toString() : code + " " + message;
+    }
+
+    private static String errorOf(Exception e) {
+        return e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+    }
+
+    /**
+     * Single reads with at most <code>pipelineDepth</code> requests in flight.
+     */
+    private class Pipeline {
+
+        private final Registration registration;
+        private final List<LwM2mPath> paths;
+        private final ContentFormat format;
+        private final long timeoutInMs;
+        private final Consumer<Result> callback;
+
+        private final Map<LwM2mPath, LwM2mNode> content = new ConcurrentHashMap<>();
+        private final Map<LwM2mPath, String> errors = new ConcurrentHashMap<>();
+        private final AtomicInteger nextIndex = new AtomicInteger();
+        private final AtomicInteger remaining;
+
+        Pipeline(Registration registration, List<LwM2mPath> paths, ContentFormat format, long timeoutInMs,
+                Consumer<Result> callback) {
+            this.registration = registration;
+            this.paths = paths;
+            this.format = format;
+            this.timeoutInMs = timeoutInMs;
+            this.callback = callback;
+            this.remaining = new AtomicInteger(paths.size());
+        }
+
+        void start() {
+            if (paths.isEmpty()) {
+                callback.accept(new Result(Mode.SINGLE));
+                return;
+            }
+            for (int i = 0; i < Math.min(pipelineDepth, paths.size()); i++) {
+                sendNext();
+            }
+        }
+
+        private void sendNext() {
+            int index = nextIndex.getAndIncrement();
+            if (index >= paths.size()) {
+                return;
+            }
+            LwM2mPath path = paths.get(index);
+            ReadRequest request = new ReadRequest(format, path.toString());
+            try {
+                coalescer.send(registration, request, timeoutInMs, response -> {
+                    if (response.isSuccess()) {
+                        valueCache.onResponse(registration, request, response);
+                        content.put(path, response.getContent());
+                    } else {
+                        errors.put(path, errorOf(response.getCode(), response.getErrorMessage()));
+                    }
+                    done();
+                }, e -> {
+                    errors.put(path, errorOf(e));
+                    done();
+                });
+            } catch (RuntimeException e) {
+                errors.put(path, errorOf(e));
+                done();
+            }
+        }
+
+        private void done() {
+            if (remaining.decrementAndGet() == 0) {
+                Result result = new Result(Mode.SINGLE);
+                for (LwM2mPath path : paths) {
+                    LwM2mNode node = content.get(path);
+                    if (node != null) {
+                        result.content.put(path, node);
+                    } else {
+                        result.errors.put(path, errors.get(path));
+                    }
+                }
+                callback.accept(result);
+            } else {
+                sendNext();
+            }
+        }
+    }
+
+    /**
+     * Merged result of a multi-path read : the value or the error of each path, in request order.
+     */
+    public static class Result {
+
+        private final Mode mode;
+        private final Map<LwM2mPath, LwM2mNode> content = new LinkedHashMap<>();
+        private final Map<LwM2mPath, String> errors = new LinkedHashMap<>();
+
+        Result(Mode mode) {
+            this.mode = mode;
+        }
+
+        public Mode getMode() {
+            return mode;
+        }
+
+        public Map<LwM2mPath, LwM2mNode> getContent() {
+            return Collections.unmodifiableMap(content);
+        }
+
+        public Map<LwM2mPath, String> getErrors() {
+            return Collections.unmodifiableMap(errors);
+        }
+    }
+}
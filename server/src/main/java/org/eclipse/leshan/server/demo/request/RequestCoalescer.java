@@ -0,0 +1,182 @@
+/*******************************************************************************
+ * Copyright (c) 2023 Sierra Wireless and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * <p>
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v20.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * <p>
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.demo.request;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.leshan.core.request.ContentFormat;
+import org.eclipse.leshan.core.request.DiscoverRequest;
+import org.eclipse.leshan.core.request.DownlinkRequest;
+import org.eclipse.leshan.core.request.ReadRequest;
+import org.eclipse.leshan.core.response.ErrorCallback;
+import org.eclipse.leshan.core.response.LwM2mResponse;
+import org.eclipse.leshan.core.response.ResponseCallback;
+import org.eclipse.leshan.server.registration.Registration;
+
+/**
+ * Single-flight sending of idempotent requests.
+ * <p>
+ * Concurrent identical Read or Discover requests (same registration, path and content format) share one in-flight
+ * CoAP exchange and all callers receive the same response (or error). This avoids multiplying traffic to constrained
+ * devices which usually handle only one exchange at a time (NSTART=1). The timeout of the first caller applies to the
+ * shared exchange.
+ * <p>
+ * Other requests are sent as is. All requests go through the {@link CircuitBreaker}, so an exchange shared by
+ * several callers counts as one towards the timeout threshold.
+ */
+public class RequestCoalescer {
+
+    private final CircuitBreaker circuitBreaker;
+    private final ConcurrentHashMap<Key, InFlight<?>> inFlights = new ConcurrentHashMap<>();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    public RequestCoalescer(CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T extends LwM2mResponse> void send(Registration destination, DownlinkRequest<T> request, long timeoutInMs,
+            ResponseCallback<T> responseCallback, ErrorCallback errorCallback) {
+        Key key = keyOf(destination, request);
+        if (key == null) {
+            circuitBreaker.send(destination, request, timeoutInMs, responseCallback, errorCallback);
+            return;
+        }
+
+        while (true) {
+            // requests with same key have same type, so have same response type
+            InFlight<T> inFlight = (InFlight<T>) inFlights.get(key);
+            if (inFlight == null) {
+                InFlight<T> newInFlight = new InFlight<>();
+                newInFlight.join(responseCallback, errorCallback);
+                if (inFlights.putIfAbsent(key, newInFlight) == null) {
+                    start(key, newInFlight, destination, request, timeoutInMs);
+                    return;
+                }
+            } else if (inFlight.join(responseCallback, errorCallback)) {
+                coalesced.incrementAndGet();
+                return;
+            }
+            // the exchange completed in the meantime, try again
+        }
+    }
+
+    /**
+     * @return the number of requests which were answered by an exchange initiated by another caller.
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    private <T extends LwM2mResponse> void start(Key key, InFlight<T> inFlight, Registration destination,
+            DownlinkRequest<T> request, long timeoutInMs) {
+        try {
+            circuitBreaker.send(destination, request, timeoutInMs, //
+                    response -> {
+                        inFlights.remove(key, inFlight);
+                        inFlight.onResponse(response);
+                    }, //
+                    e -> {
+                        inFlights.remove(key, inFlight);
+                        inFlight.onError(e);
+                    });
+        } catch (RuntimeException e) {
+            inFlights.remove(key, inFlight);
+            inFlight.onError(e);
+        }
+    }
+
+    private static Key keyOf(Registration destination, DownlinkRequest<?> request) {
+        if (request instanceof ReadRequest) {
+            ReadRequest read = (ReadRequest) request;
+            return new Key(destination.getId(), ReadRequest.class, read.getPath().toString(),
+                    read.getContentFormat());
+        } else if (request instanceof DiscoverRequest) {
+            return new Key(destination.getId(), DiscoverRequest.class,
+                    ((DiscoverRequest) request).getPath().toString(), null);
+        }
+        return null;
+    }
+
+    private static class InFlight<T extends LwM2mResponse> {
+
+        private final List<ResponseCallback<T>> responseCallbacks = new ArrayList<>(1);
+        private final List<ErrorCallback> errorCallbacks = new ArrayList<>(1);
+        private boolean completed;
+
+        synchronized boolean join(ResponseCallback<T> responseCallback, ErrorCallback errorCallback) {
+            if (completed) {
+                return false;
+            }
+            responseCallbacks.add(responseCallback);
+            errorCallbacks.add(errorCallback);
+            return true;
+        }
+
+        void onResponse(T response) {
+            synchronized (this) {
+                completed = true;
+            }
+            for (ResponseCallback<T> callback : responseCallbacks) {
+                callback.onResponse(response);
+            }
+        }
+
+        void onError(Exception e) {
+            synchronized (this) {
+                completed = true;
+            }
+            for (ErrorCallback callback : errorCallbacks) {
+                callback.onError(e);
+            }
+        }
+    }
+
+    private static class Key {
+
+        private final String registrationId;
+        private final Class<?> type;
+        private final String path;
+        private final ContentFormat contentFormat;
+
+        Key(String registrationId, Class<?> type, String path, ContentFormat contentFormat) {
+            this.registrationId = registrationId;
+            this.type = type;
+            this.path = path;
+            this.contentFormat = contentFormat;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Key))
+                return false;
+            Key other = (Key) o;
+            return registrationId.equals(other.registrationId) && type.equals(other.type) && path.equals(other.path)
+                    && Objects.equals(contentFormat, other.contentFormat);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(registrationId, type, path, contentFormat);
+        }
+    }
+}
@@ -0,0 +1,315 @@
+/*******************************************************************************
+ * Copyright (c) 2023 Sierra Wireless and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * <p>
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v20.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * <p>
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.demo.request;
+
+import java.net.InetSocketAddress;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.californium.core.coap.CoAP.Type;
+import org.eclipse.californium.core.coap.EmptyMessage;
+import org.eclipse.californium.core.coap.Message;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.interceptors.MessageInterceptor;
+import org.eclipse.leshan.core.observation.Observation;
+import org.eclipse.leshan.server.registration.Registration;
+import org.eclipse.leshan.server.registration.RegistrationListener;
+import org.eclipse.leshan.server.registration.RegistrationService;
+import org.eclipse.leshan.server.registration.RegistrationUpdate;
+
+/**
+ * Per endpoint round-trip time estimator used to derive adaptive request timeouts.
+ * <p>
+ * Samples come from CoAP exchanges seen by this {@link MessageInterceptor} : time between a confirmable request and
+ * its acknowledgement. As in RFC 6298 (Karn's algorithm), retransmitted requests give no sample. A timeout
+ * ({@link #onTimeout(String)}) doubles the next timeout of the endpoint until a new sample comes.
+ * <p>
+ * Completed LwM2M requests ({@link #onResponse(String, long)}) are only kept as a separate latency statistic : their
+ * elapsed time includes device processing and CoAP retransmission back-off, so it does not feed the timeout.
+ * <p>
+ * The timeout is <code>factor * (SRTT + 4 * RTTVAR)</code>, bounded by a minimum and a maximum, or the default timeout
+ * when the endpoint was never measured.
+ */
+public class RttEstimator implements MessageInterceptor {
+
+    public static final long DEFAULT_TIMEOUT = 5000; // ms
+    public static final long DEFAULT_MIN_TIMEOUT = 1000; // ms
+    public static final long DEFAULT_MAX_TIMEOUT = 120_000; // ms
+
+    // margin over RTO, leaving room for device processing and one retransmission
+    private static final int TIMEOUT_FACTOR = 2;
+    private static final int MAX_BACKOFF = 3;
+    private static final int MAX_PENDING_EXCHANGES = 10_000;
+
+    private final long minTimeout;
+    private final long maxTimeout;
+
+    private final Map<String, Estimate> estimates = new ConcurrentHashMap<>();
+    private final Map<InetSocketAddress, String> endpointsByAddress = new ConcurrentHashMap<>();
+    private final Map<ExchangeKey, PendingExchange> pendingExchanges = new ConcurrentHashMap<>();
+
+    private final RegistrationListener registrationListener = new RegistrationListener() {
+
+        @Override
+        public void registered(Registration registration, Registration previousReg,
+                Collection<Observation> previousObservations) {
+            if (previousReg != null) {
+                endpointsByAddress.remove(previousReg.getIdentity().getPeerAddress(), previousReg.getEndpoint());
+            }
+            // new registration, maybe over a new link : measure again
+            estimates.remove(registration.getEndpoint());
+            endpointsByAddress.put(registration.getIdentity().getPeerAddress(), registration.getEndpoint());
+        }
+
+        @Override
+        public void updated(RegistrationUpdate update, Registration updatedRegistration,
+                Registration previousRegistration) {
+            endpointsByAddress.remove(previousRegistration.getIdentity().getPeerAddress(),
+                    previousRegistration.getEndpoint());
+            endpointsByAddress.put(updatedRegistration.getIdentity().getPeerAddress(),
+                    updatedRegistration.getEndpoint());
+        }
+
+        @Override
+        public void unregistered(Registration registration, Collection<Observation> observations, boolean expired,
+                Registration newReg) {
+            endpointsByAddress.remove(registration.getIdentity().getPeerAddress(), registration.getEndpoint());
+            if (newReg == null) {
+                estimates.remove(registration.getEndpoint());
+            }
+        }
+    };
+
+    public RttEstimator(RegistrationService registrationService, long minTimeout, long maxTimeout) {
+        if (minTimeout <= 0 || maxTimeout < minTimeout) {
+            throw new IllegalArgumentException(
+                    String.format("invalid timeout bounds [%d, %d]", minTimeout, maxTimeout));
+        }
+        this.minTimeout = minTimeout;
+        this.maxTimeout = maxTimeout;
+        registrationService.addListener(registrationListener);
+        for (Iterator<Registration> it = registrationService.getAllRegistrations(); it.hasNext();) {
+            Registration registration = it.next();
+            endpointsByAddress.putIfAbsent(registration.getIdentity().getPeerAddress(), registration.getEndpoint());
+        }
+    }
+
+    /**
+     * @return the timeout in milliseconds to use for a request to the given endpoint.
+     */
+    public long getTimeout(String endpoint) {
+        Estimate estimate = estimates.get(endpoint);
+        if (estimate == null || !estimate.isMeasured()) {
+            return Math.max(minTimeout, Math.min(maxTimeout, DEFAULT_TIMEOUT));
+        }
+        return estimate.timeout(minTimeout, maxTimeout);
+    }
+
+    /**
+     * @return the smoothed round-trip time in milliseconds of the given endpoint, or <code>null</code> if it was never
+     *         measured.
+     */
+    public Long getSmoothedRtt(String endpoint) {
+        Estimate estimate = estimates.get(endpoint);
+        return estimate == null ? null : estimate.smoothedRtt();
+    }
+
+    /**
+     * @return the smoothed latency in milliseconds of completed LwM2M requests to the given endpoint, or
+     *         <code>null</code> if none completed yet.
+     */
+    public Long getSmoothedLatency(String endpoint) {
+        Estimate estimate = estimates.get(endpoint);
+        return estimate == null ? null : estimate.smoothedLatency();
+    }
+
+    /**
+     * A request to the given endpoint completed with a response after <code>elapsed</code> milliseconds.
+     * <p>
+     * This only updates the latency statistic, not the round-trip time used for the timeout.
+     */
+    public void onResponse(String endpoint, long elapsed) {
+        estimates.computeIfAbsent(endpoint, k -> new Estimate()).addLatency(elapsed);
+    }
+
+    /**
+     * A request to the given endpoint timed out.
+     */
+    public void onTimeout(String endpoint) {
+        Estimate estimate = estimates.get(endpoint);
+        if (estimate != null) {
+            estimate.backoff();
+        }
+    }
+
+    @Override
+    public void sendRequest(Request request) {
+        if (request.getType() != Type.CON) {
+            return;
+        }
+        InetSocketAddress address = request.getDestinationContext().getPeerAddress();
+        if (!endpointsByAddress.containsKey(address)) {
+            return;
+        }
+        ExchangeKey key = new ExchangeKey(address, request.getMID());
+        PendingExchange previous = pendingExchanges.putIfAbsent(key, new PendingExchange(System.nanoTime()));
+        if (previous != null) {
+            // retransmission : the acknowledgement could answer any transmission
+            previous.retransmitted = true;
+        } else if (pendingExchanges.size() > MAX_PENDING_EXCHANGES) {
+            prunePendingExchanges();
+        }
+    }
+
+    @Override
+    public void sendResponse(Response response) {
+    }
+
+    @Override
+    public void sendEmptyMessage(EmptyMessage message) {
+    }
+
+    @Override
+    public void receiveRequest(Request request) {
+    }
+
+    @Override
+    public void receiveResponse(Response response) {
+        acknowledged(response);
+    }
+
+    @Override
+    public void receiveEmptyMessage(EmptyMessage message) {
+        acknowledged(message);
+    }
+
+    private void acknowledged(Message message) {
+        if (message.getType() != Type.ACK && message.getType() != Type.RST) {
+            return;
+        }
+        InetSocketAddress address = message.getSourceContext().getPeerAddress();
+        PendingExchange exchange = pendingExchanges.remove(new ExchangeKey(address, message.getMID()));
+        if (exchange == null || exchange.retransmitted || message.getType() == Type.RST) {
+            return;
+        }
+        String endpoint = endpointsByAddress.get(address);
+        if (endpoint != null) {
+            long rtt = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - exchange.sentTime);
+            estimates.computeIfAbsent(endpoint, k -> new Estimate()).addSample(rtt);
+        }
+    }
+
+    /**
+     * Forget exchanges which were never acknowledged (lost, or device gone).
+     */
+    private void prunePendingExchanges() {
+        long oldest = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(maxTimeout);
+        pendingExchanges.values().removeIf(exchange -> exchange.sentTime - oldest < 0);
+    }
+
+    /**
+     * SRTT/RTTVAR computation from RFC 6298, plus a smoothed latency of completed requests.
+     */
+    private static class Estimate {
+        // guarded by "this"
+        private double srtt;
+        private double rttvar;
+        private boolean measured;
+        private int backoff;
+        private double latency;
+        private boolean latencyMeasured;
+
+        synchronized void addSample(long rtt) {
+            if (!measured) {
+                measured = true;
+                srtt = rtt;
+                rttvar = rtt / 2d;
+            } else {
+                rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - rtt);
+                srtt = 0.875 * srtt + 0.125 * rtt;
+            }
+            backoff = 0;
+        }
+
+        synchronized void addLatency(long elapsed) {
+            latency = latencyMeasured ? 0.875 * latency + 0.125 * elapsed : elapsed;
+            latencyMeasured = true;
+        }
+
+        synchronized void backoff() {
+            if (backoff < MAX_BACKOFF) {
+                backoff++;
+            }
+        }
+
+        synchronized boolean isMeasured() {
+            return measured;
+        }
+
+        synchronized Long smoothedRtt() {
+            return measured ? Math.round(srtt) : null;
+        }
+
+        synchronized Long smoothedLatency() {
+            return latencyMeasured ? Math.round(latency) : null;
+        }
+
+        synchronized long timeout(long min, long max) {
+            long rto = Math.round(srtt + 4 * rttvar);
+            long timeout = (TIMEOUT_FACTOR * rto) << backoff;
+            return Math.max(min, Math.min(max, timeout));
+        }
+    }
+
+    private static class PendingExchange {
+        private final long sentTime;
+        private volatile boolean retransmitted;
+
+        PendingExchange(long sentTime) {
+            this.sentTime = sentTime;
+        }
+    }
+
+    private static class ExchangeKey {
+        private final InetSocketAddress address;
+        private final int mid;
+
+        ExchangeKey(InetSocketAddress address, int mid) {
+            this.address = address;
+            this.mid = mid;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof ExchangeKey))
+                return false;
+            ExchangeKey other = (ExchangeKey) o;
+            return mid == other.mid && address.equals(other.address);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(address, mid);
+        }
+    }
+}
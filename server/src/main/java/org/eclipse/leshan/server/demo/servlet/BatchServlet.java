@@ -0,0 +1,440 @@
+/*******************************************************************************
+ * Copyright (c) 2023 Sierra Wireless and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * <p>
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v20.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * <p>
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.demo.servlet;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.eclipse.leshan.core.link.Link;
+import org.eclipse.leshan.core.node.LwM2mNode;
+import org.eclipse.leshan.core.request.ContentFormat;
+import org.eclipse.leshan.core.request.DiscoverRequest;
+import org.eclipse.leshan.core.request.DownlinkRequest;
+import org.eclipse.leshan.core.request.ExecuteRequest;
+import org.eclipse.leshan.core.request.ObserveRequest;
+import org.eclipse.leshan.core.request.ReadRequest;
+import org.eclipse.leshan.core.request.WriteRequest;
+import org.eclipse.leshan.core.request.WriteRequest.Mode;
+import org.eclipse.leshan.core.request.exception.ClientSleepingException;
+import org.eclipse.leshan.core.request.exception.TimeoutException;
+import org.eclipse.leshan.core.response.LwM2mResponse;
+import org.eclipse.leshan.server.californium.LeshanServer;
+import org.eclipse.leshan.server.demo.cache.LastKnownValueCache;
+import org.eclipse.leshan.server.demo.registration.RegistrationFilter;
+import org.eclipse.leshan.server.demo.registration.RegistrationIndex;
+import org.eclipse.leshan.server.demo.request.CircuitOpenException;
+import org.eclipse.leshan.server.demo.request.RequestCoalescer;
+import org.eclipse.leshan.server.demo.request.RttEstimator;
+import org.eclipse.leshan.server.demo.servlet.json.JacksonLinkSerializer;
+import org.eclipse.leshan.server.demo.servlet.json.JacksonLwM2mNodeDeserializer;
+import org.eclipse.leshan.server.demo.servlet.json.JacksonLwM2mNodeSerializer;
+import org.eclipse.leshan.server.demo.servlet.json.JacksonResponseSerializer;
+import org.eclipse.leshan.server.registration.Registration;
+import org.eclipse.leshan.server.registration.RegistrationService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fan-out one LwM2M operation to a set of endpoints.
+ * <p>
+ * <code>POST /api/batch</code> with a JSON body like :
+ *
+ * <pre>
+ * {
+ *   "endpoints" : ["ep1", "ep2"],       // or "prefix" : "ep" and/or "attributes" : {"key" : "value"}
+ *   "operation" : "read",               // read, discover, observe, write or execute
+ *   "path" : "/3/0/9",
+ *   "format" : "TLV",                   // optional content format
+ *   "node" : {...},                     // write only : same JSON as PUT /api/clients/{ep}/{path}
+ *   "replace" : true,                   // write only
+ *   "params" : "...",                   // execute only
+ *   "concurrency" : 32,                 // max number of device requests in flight
+ *   "timeout" : 5                       // per endpoint timeout in seconds (or "500ms"), default is adaptive
+ * }
+ * </pre>
+ *
+ * Results are streamed back as NDJSON, one line per endpoint, in completion order.
+ */
+public class BatchServlet extends HttpServlet {
+
+    private static final String ENDPOINTS_FIELD = "endpoints";
+    private static final String PREFIX_FIELD = "prefix";
+    private static final String ATTRIBUTES_FIELD = "attributes";
+    private static final String OPERATION_FIELD = "operation";
+    private static final String PATH_FIELD = "path";
+    private static final String FORMAT_FIELD = "format";
+    private static final String NODE_FIELD = "node";
+    private static final String REPLACE_FIELD = "replace";
+    private static final String PARAMS_FIELD = "params";
+    private static final String CONCURRENCY_FIELD = "concurrency";
+    private static final String TIMEOUT_FIELD = "timeout";
+
+    private static final int DEFAULT_CONCURRENCY = 32;
+    private static final int MAX_CONCURRENCY = 1024;
+
+    private static final byte[] NEW_LINE = { '\n' };
+
+    private static final Logger LOG = LoggerFactory.getLogger(BatchServlet.class);
+
+    private static final long serialVersionUID = 1L;
+
+    private final LeshanServer server;
+    private final RegistrationIndex registrationIndex;
+    private final LastKnownValueCache valueCache;
+    private final RequestCoalescer coalescer;
+    private final RttEstimator rttEstimator;
+    private final ObjectMapper mapper;
+
+    public BatchServlet(LeshanServer server, RegistrationIndex registrationIndex, LastKnownValueCache valueCache,
+        RequestCoalescer coalescer, RttEstimator rttEstimator) {
+        this.server = server;
+        this.registrationIndex = registrationIndex;
+        this.valueCache = valueCache;
+        this.coalescer = coalescer;
+        this.rttEstimator = rttEstimator;
+
+        mapper = new ObjectMapper();
+        mapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
+        SimpleModule module = new SimpleModule();
+        module.addSerializer(Link.class, new JacksonLinkSerializer());
+        module.addSerializer(LwM2mResponse.class, new JacksonResponseSerializer());
+        module.addSerializer(LwM2mNode.class, new JacksonLwM2mNodeSerializer());
+        module.addDeserializer(LwM2mNode.class, new JacksonLwM2mNodeDeserializer());
+        mapper.registerModule(module);
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        if (req.getPathInfo() != null && !"/".equals(req.getPathInfo())) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid path");
+            return;
+        }
+
+        Batch batch;
+        try {
+            JsonNode body = mapper.readTree(req.getInputStream());
+            if (body == null || !body.isObject()) {
+                throw new IllegalArgumentException("body must be a JSON object");
+            }
+            batch = new Batch(body);
+        } catch (JsonProcessingException | RuntimeException e) {
+            LOG.warn("Invalid batch request", e);
+            resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            resp.getWriter().append("Invalid request:").append(e.getMessage()).flush();
+            return;
+        }
+
+        resp.setContentType("application/x-ndjson");
+        resp.setStatus(HttpServletResponse.SC_OK);
+        batch.start(req.startAsync(), resp.getOutputStream());
+    }
+
+    private Iterator<Target> selectTargets(JsonNode body) {
+        RegistrationService registrations = server.getRegistrationService();
+
+        // explicit list of endpoints
+        JsonNode endpoints = body.get(ENDPOINTS_FIELD);
+        if (endpoints != null) {
+            if (!endpoints.isArray()) {
+                throw new IllegalArgumentException("'endpoints' must be an array");
+            }
+            Iterator<JsonNode> it = endpoints.elements();
+            return new Iterator<Target>() {
+                @Override
+                public boolean hasNext() {
+                    return it.hasNext();
+                }
+
+                @Override
+                public Target next() {
+                    String endpoint = it.next().asText();
+                    return new Target(endpoint, registrations.getByEndpoint(endpoint));
+                }
+            };
+        }
+
+        // selector
+        RegistrationFilter filter = new RegistrationFilter();
+        if (body.hasNonNull(PREFIX_FIELD)) {
+            filter.prefix(body.get(PREFIX_FIELD).asText());
+        }
+        JsonNode attributesNode = body.get(ATTRIBUTES_FIELD);
+        if (attributesNode != null) {
+            if (!attributesNode.isObject()) {
+                throw new IllegalArgumentException("'attributes' must be an object");
+            }
+            attributesNode.fields().forEachRemaining(e -> filter.attribute(e.getKey(), e.getValue().asText()));
+        }
+        if (filter.isEmpty()) {
+            throw new IllegalArgumentException("one of 'endpoints', 'prefix' or 'attributes' is required");
+        }
+
+        Iterator<Registration> matching = registrationIndex.find(filter, null);
+        return new Iterator<Target>() {
+            @Override
+            public boolean hasNext() {
+                return matching.hasNext();
+            }
+
+            @Override
+            public Target next() {
+                Registration registration = matching.next();
+                return new Target(registration.getEndpoint(), registration);
+            }
+        };
+    }
+
+    private DownlinkRequest<? extends LwM2mResponse> createRequest(JsonNode body) throws JsonProcessingException {
+        if (!body.hasNonNull(OPERATION_FIELD) || !body.hasNonNull(PATH_FIELD)) {
+            throw new IllegalArgumentException("'operation' and 'path' are required");
+        }
+        String operation = body.get(OPERATION_FIELD).asText();
+        String target = body.get(PATH_FIELD).asText();
+        ContentFormat contentFormat = body.hasNonNull(FORMAT_FIELD)
+            ? ContentFormat.fromName(body.get(FORMAT_FIELD).asText().toUpperCase())
+            : null;
+
+        // requests are immutable so the same instance is shared by all endpoints
+        switch (operation) {
+        case "read":
+            return new ReadRequest(contentFormat, target);
+        case "discover":
+            return new DiscoverRequest(target);
+        case "observe":
+            return new ObserveRequest(contentFormat, target);
+        case "write":
+            if (!body.hasNonNull(NODE_FIELD)) {
+                throw new IllegalArgumentException("'node' is required for write operation");
+            }
+            LwM2mNode node = mapper.treeToValue(body.get(NODE_FIELD), LwM2mNode.class);
+            boolean replace = !body.hasNonNull(REPLACE_FIELD) || body.get(REPLACE_FIELD).asBoolean();
+            return new WriteRequest(replace ? Mode.REPLACE : Mode.UPDATE, contentFormat, target, node);
+        case "execute":
+            String params = body.hasNonNull(PARAMS_FIELD) ? body.get(PARAMS_FIELD).asText() : null;
+            return new ExecuteRequest(target, params);
+        default:
+            throw new IllegalArgumentException(String.format("unsupported operation '%s'", operation));
+        }
+    }
+
+    private static Long extractTimeout(JsonNode body) {
+        JsonNode timeout = body.get(TIMEOUT_FIELD);
+        if (timeout == null || timeout.isNull()) {
+            return null;
+        }
+        try {
+            return Durations.parseMillis(timeout.asText());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(String.format("invalid 'timeout' %s", timeout));
+        }
+    }
+
+    private static String errorKind(Exception e) {
+        if (e instanceof TimeoutException) {
+            return "timeout";
+        } else if (e instanceof ClientSleepingException) {
+            return "sleeping";
+        } else if (e instanceof CircuitOpenException) {
+            return "circuit_open";
+        } else {
+            return "error";
+        }
+    }
+
+    private static class Target {
+        final String endpoint;
+        final Registration registration;
+
+        Target(String endpoint, Registration registration) {
+            this.endpoint = endpoint;
+            this.registration = registration;
+        }
+    }
+
+    /**
+     * One running fan-out.
+     * <p>
+     * An endpoint occupies a slot of the concurrency window from the moment its request is sent until its result line
+     * is written to the HTTP response, so a slow HTTP client slows down the campaign instead of buffering results.
+     */
+    private class Batch {
+
+        private final Iterator<Target> targets;
+        private final DownlinkRequest<? extends LwM2mResponse> request;
+        private final int concurrency;
+        // null means adaptive timeout
+        private final Long timeout;
+
+        private final AtomicInteger inFlight = new AtomicInteger();
+        // trampoline counter : avoid recursion when requests fail synchronously
+        private final AtomicInteger fillWip = new AtomicInteger();
+        private final Queue<byte[]> lines = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean draining = new AtomicBoolean(false);
+        private final AtomicBoolean completed = new AtomicBoolean(false);
+        private volatile boolean cancelled;
+
+        private AsyncContext async;
+        private ServletOutputStream out;
+
+        Batch(JsonNode body) throws JsonProcessingException {
+            this.request = createRequest(body);
+            this.targets = selectTargets(body);
+
+            int concurrency = body.hasNonNull(CONCURRENCY_FIELD) ? body.get(CONCURRENCY_FIELD).asInt()
+                : DEFAULT_CONCURRENCY;
+            if (concurrency < 1 || concurrency > MAX_CONCURRENCY) {
+                throw new IllegalArgumentException(
+                    String.format("'concurrency' must be between 1 and %d", MAX_CONCURRENCY));
+            }
+            this.concurrency = concurrency;
+            this.timeout = extractTimeout(body);
+        }
+
+        void start(AsyncContext async, ServletOutputStream out) {
+            this.async = async;
+            this.out = out;
+            // the batch ends when all endpoints answered, whatever the time it takes
+            async.setTimeout(0);
+            async.addListener(new AsyncListener() {
+                @Override
+                public void onComplete(AsyncEvent event) {
+                }
+
+                @Override
+                public void onTimeout(AsyncEvent event) {
+                }
+
+                @Override
+                public void onError(AsyncEvent event) {
+                    cancel();
+                }
+
+                @Override
+                public void onStartAsync(AsyncEvent event) {
+                }
+            });
+            fill();
+        }
+
+        private void fill() {
+            if (fillWip.getAndIncrement() != 0) {
+                return;
+            }
+            do {
+                while (!cancelled && inFlight.get() < concurrency && targets.hasNext()) {
+                    inFlight.incrementAndGet();
+                    send(targets.next());
+                }
+                if (!cancelled && !targets.hasNext() && inFlight.get() == 0) {
+                    complete();
+                }
+            } while (fillWip.decrementAndGet() != 0);
+        }
+
+        private void send(Target target) {
+            if (target.registration == null) {
+                result(target.endpoint, null, "not_registered", "no registered client with this endpoint");
+                return;
+            }
+            try {
+                long timeout = this.timeout != null ? this.timeout : rttEstimator.getTimeout(target.endpoint);
+                coalescer.send(target.registration, request, timeout, //
+                    response -> {
+                        valueCache.onResponse(target.registration, request, response);
+                        result(target.endpoint, response, null, null);
+                    }, //
+                    e -> result(target.endpoint, null, errorKind(e), e.getMessage()));
+            } catch (RuntimeException e) {
+                result(target.endpoint, null, errorKind(e), e.getMessage());
+            }
+        }
+
+        private void result(String endpoint, LwM2mResponse response, String error, String message) {
+            if (cancelled) {
+                return;
+            }
+            Map<String, Object> line = new LinkedHashMap<>();
+            line.put("ep", endpoint);
+            if (response != null) {
+                line.put("response", response);
+            } else {
+                line.put("error", error);
+                line.put("message", message);
+            }
+            try {
+                lines.add(mapper.writeValueAsBytes(line));
+            } catch (JsonProcessingException e) {
+                LOG.warn("Unable to serialize result for {}", endpoint, e);
+                inFlight.decrementAndGet();
+            }
+            scheduleDrain();
+        }
+
+        private void scheduleDrain() {
+            if (draining.compareAndSet(false, true)) {
+                // write from a container thread, Californium threads must not block on the HTTP client
+                async.start(this::drain);
+            }
+        }
+
+        private void drain() {
+            do {
+                int written = 0;
+                try {
+                    byte[] line;
+                    while (!cancelled && (line = lines.poll()) != null) {
+                        out.write(line);
+                        out.write(NEW_LINE);
+                        written++;
+                    }
+                    out.flush();
+                } catch (IOException | RuntimeException e) {
+                    LOG.debug("Batch response stream closed", e);
+                    cancel();
+                }
+                inFlight.addAndGet(-written);
+                draining.set(false);
+                fill();
+            } while (!lines.isEmpty() && draining.compareAndSet(false, true));
+        }
+
+        private void cancel() {
+            cancelled = true;
+            complete();
+        }
+
+        private void complete() {
+            if (completed.compareAndSet(false, true)) {
+                async.complete();
+            }
+        }
+    }
+}
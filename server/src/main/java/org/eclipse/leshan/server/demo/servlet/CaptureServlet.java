@@ -0,0 +1,154 @@
+/*******************************************************************************
+ * Copyright (c) 2023 Sierra Wireless and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * <p>
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v20.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * <p>
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.demo.servlet;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.eclipse.leshan.server.demo.capture.CaptureWriter;
+import org.eclipse.leshan.server.demo.capture.CoapCapture;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Access to the CoAP capture :
+ * <ul>
+ * <li><code>GET /api/capture</code> : capture settings, counters and segment files.</li>
+ * <li><code>GET /api/capture/download?ep=...&amp;from=...&amp;to=...</code> : captured messages, optionally only
+ * those of some endpoints and in a time range (ms since epoch), in the capture format read by
+ * {@link org.eclipse.leshan.server.demo.capture.CaptureReader}.</li>
+ * <li><code>PUT /api/capture/filter?ep=...</code> : only capture messages of these endpoints from now on, all
+ * messages without parameter.</li>
+ * </ul>
+ */
+public class CaptureServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    private final CoapCapture capture;
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    public CaptureServlet(CoapCapture capture) {
+        this.capture = capture;
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        String pathInfo = req.getPathInfo();
+        if (pathInfo == null || "/".equals(pathInfo)) {
+            writeStatus(resp);
+            return;
+        }
+        if (!"/download".equals(pathInfo)) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        Set<String> endpoints = parseEndpoints(req);
+        long from;
+        long to;
+        try {
+            from = req.getParameter("from") == null ? Long.MIN_VALUE : Long.parseLong(req.getParameter("from"));
+            to = req.getParameter("to") == null ? Long.MAX_VALUE : Long.parseLong(req.getParameter("to"));
+        } catch (NumberFormatException e) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid time range: " + e.getMessage());
+            return;
+        }
+
+        resp.setContentType("application/octet-stream");
+        resp.setHeader("Content-Disposition", "attachment; filename=\"capture.lwcap\"");
+        resp.setStatus(HttpServletResponse.SC_OK);
+        try (CaptureWriter writer = new CaptureWriter(resp.getOutputStream())) {
+            capture.read(record -> (endpoints == null || endpoints.contains(record.getEndpoint()))
+                    && record.getTimestamp() >= from && record.getTimestamp() <= to, writer::write);
+        }
+    }
+
+    @Override
+    protected void doPut(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        if (!"/filter".equals(req.getPathInfo())) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        capture.setEndpointFilter(parseEndpoints(req));
+        writeStatus(resp);
+    }
+
+    /**
+     * @return the endpoints given as comma separated or repeated <code>ep</code> parameters, <code>null</code> if
+     *         none.
+     */
+    private static Set<String> parseEndpoints(HttpServletRequest req) {
+        String[] values = req.getParameterValues("ep");
+        if (values == null) {
+            return null;
+        }
+        Set<String> endpoints = new HashSet<>();
+        for (String value : values) {
+            for (String endpoint : value.split(",")) {
+                if (!endpoint.trim().isEmpty()) {
+                    endpoints.add(endpoint.trim());
+                }
+            }
+        }
+        return endpoints.isEmpty() ? null : endpoints;
+    }
+
+    private void writeStatus(HttpServletResponse resp) throws IOException {
+        List<Map<String, Object>> segments = new ArrayList<>();
+        for (Path segment : capture.getSegments()) {
+            Map<String, Object> file = new LinkedHashMap<>();
+            file.put("name", segment.getFileName().toString());
+            try {
+                file.put("lastModified", Files.getLastModifiedTime(segment).toMillis());
+            } catch (NoSuchFileException e) {
+                // rotated out
+                continue;
+            }
+            segments.add(file);
+        }
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("directory", capture.getDirectory().toString());
+        status.put("segmentSize", capture.getSegmentSize());
+        status.put("maxSegments", capture.getMaxSegments());
+        status.put("endpoints", capture.getEndpointFilter());
+        status.put("captured", capture.getCapturedCount());
+        status.put("dropped", capture.getDroppedCount());
+        status.put("segments", segments);
+
+        resp.setContentType("application/json");
+        resp.getOutputStream().write(mapper.writeValueAsString(status).getBytes(StandardCharsets.UTF_8));
+        resp.setStatus(HttpServletResponse.SC_OK);
+    }
+
+    @Override
+    public void destroy() {
+        // the capture is stopped with the web server
+        capture.destroy();
+        super.destroy();
+    }
+}
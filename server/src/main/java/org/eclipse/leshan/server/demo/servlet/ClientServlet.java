@@ -17,11 +17,17 @@
 package org.eclipse.leshan.server.demo.servlet;
 
 import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.databind.module.SimpleModule;
-import jakarta.servlet.ServletException;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
 import jakarta.servlet.http.HttpServlet;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
@@ -39,14 +45,29 @@ import org.eclipse.leshan.core.request.WriteRequest.Mode;
 import org.eclipse.leshan.core.request.exception.*;
 import org.eclipse.leshan.core.response.*;
 import org.eclipse.leshan.server.californium.LeshanServer;
+import org.eclipse.leshan.server.demo.cache.LastKnownValueCache;
+import org.eclipse.leshan.server.demo.cache.LastKnownValueCache.CachedValue;
+import org.eclipse.leshan.server.demo.registration.RegistrationFilter;
+import org.eclipse.leshan.server.demo.registration.RegistrationIndex;
+import org.eclipse.leshan.server.demo.request.CircuitOpenException;
+import org.eclipse.leshan.server.demo.request.DeferredJob;
+import org.eclipse.leshan.server.demo.request.DeferredRequestQueue;
+import org.eclipse.leshan.server.demo.request.MultiPathReader;
+import org.eclipse.leshan.server.demo.request.QueueFullException;
+import org.eclipse.leshan.server.demo.request.RequestCoalescer;
+import org.eclipse.leshan.server.demo.request.RttEstimator;
 import org.eclipse.leshan.server.demo.servlet.json.*;
+import org.eclipse.leshan.server.demo.stats.TrafficStats;
+import org.eclipse.leshan.server.demo.stats.TrafficStats.EndpointTraffic;
 import org.eclipse.leshan.server.registration.Registration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.net.URI;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Service HTTP REST API calls.
@@ -56,34 +77,72 @@ public class ClientServlet extends HttpServlet {
     private static final String FORMAT_PARAM = "format";
     private static final String TIMEOUT_PARAM = "timeout";
     private static final String REPLACE_PARAM = "replace";
+    private static final String MAX_AGE_PARAM = "maxAge";
+    private static final String DEFER_PARAM = "defer";
+    private static final String CALLBACK_PARAM = "callback";
+
+    // for registrations listing
+    private static final String LIMIT_PARAM = "limit";
+    private static final String CURSOR_PARAM = "cursor";
+    private static final int MAX_LIMIT = 10000;
+    private static final String PREFIX_PARAM = "prefix";
+    private static final String VERSION_PARAM = "version";
+    private static final String BINDING_PARAM = "binding";
+    private static final String QUEUEMODE_PARAM = "queuemode";
+    private static final String OBJECT_PARAM = "object";
+    private static final String ATTRIBUTE_PARAM = "attr";
 
     // for composite operation
     private static final String PATH_PARAM = "paths";
     private static final String PATH_FORMAT_PARAM = "pathformat";
     private static final String NODE_FORMAT_PARAM = "nodeformat";
+    private static final int MAX_PATHS = 256;
 
     private static final Logger LOG = LoggerFactory.getLogger(ClientServlet.class);
 
-    private static final long DEFAULT_TIMEOUT = 5000; // ms
+    private static final long ASYNC_GRACE_PERIOD = 5000; // ms
 
     private static final long serialVersionUID = 1L;
 
     private final LeshanServer server;
+    private final RegistrationIndex registrationIndex;
+    private final LastKnownValueCache valueCache;
+    private final RequestCoalescer coalescer;
+    private final DeferredRequestQueue deferredQueue;
+    private final RttEstimator rttEstimator;
+    private final MultiPathReader multiPathReader;
+    private final TrafficStats trafficStats;
     private final ObjectMapper mapper;
+    private final ObjectWriter streamWriter;
     private final LwM2mAttributeParser attributeParser;
 
-    public ClientServlet(LeshanServer server) {
+    public ClientServlet(
+        LeshanServer server, RegistrationIndex registrationIndex, LastKnownValueCache valueCache,
+        RequestCoalescer coalescer, DeferredRequestQueue deferredQueue,
+        JacksonRegistrationSerializer registrationSerializer, RttEstimator rttEstimator,
+        MultiPathReader multiPathReader, TrafficStats trafficStats
+    ) {
         this.server = server;
+        this.registrationIndex = registrationIndex;
+        this.valueCache = valueCache;
+        this.coalescer = coalescer;
+        this.deferredQueue = deferredQueue;
+        this.rttEstimator = rttEstimator;
+        this.multiPathReader = multiPathReader;
+        this.trafficStats = trafficStats;
 
         mapper = new ObjectMapper();
         mapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
         SimpleModule module = new SimpleModule();
         module.addSerializer(Link.class, new JacksonLinkSerializer());
-        module.addSerializer(Registration.class, new JacksonRegistrationSerializer(server.getPresenceService()));
+        module.addSerializer(Registration.class, registrationSerializer);
         module.addSerializer(LwM2mResponse.class, new JacksonResponseSerializer());
         module.addSerializer(LwM2mNode.class, new JacksonLwM2mNodeSerializer());
+        module.addSerializer(DeferredJob.class, new JacksonDeferredJobSerializer());
         module.addDeserializer(LwM2mNode.class, new JacksonLwM2mNodeDeserializer());
         mapper.registerModule(module);
+        // do not flush after each element when streaming large arrays
+        streamWriter = mapper.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
         attributeParser = new DefaultLwM2mAttributeParser();
     }
 
@@ -95,16 +154,19 @@ public class ClientServlet extends HttpServlet {
 
         // all registered clients
         if (req.getPathInfo() == null) {
-            Collection<Registration> registrations = new ArrayList<>();
-            for (Iterator<Registration> iterator = server.getRegistrationService()
-                .getAllRegistrations(); iterator.hasNext(); ) {
-                registrations.add(iterator.next());
+            RegistrationFilter filter;
+            try {
+                filter = extractFilter(req);
+            } catch (IllegalArgumentException e) {
+                resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid filter: " + e.getMessage());
+                return;
+            }
+            String limitParam = req.getParameter(LIMIT_PARAM);
+            if (limitParam == null) {
+                writeAllRegistrations(resp, filter);
+            } else {
+                writeRegistrationPage(req, resp, filter, limitParam);
             }
-
-            String json = this.mapper.writeValueAsString(registrations.toArray(new Registration[]{}));
-            resp.setContentType("application/json");
-            resp.getOutputStream().write(json.getBytes(StandardCharsets.UTF_8));
-            resp.setStatus(HttpServletResponse.SC_OK);
             return;
         }
 
@@ -129,6 +191,56 @@ public class ClientServlet extends HttpServlet {
             }
             return;
         }
+        // /stats : traffic counters and round-trip times of the client
+        if (path.length == 2 && "stats".equals(path[1])) {
+            Registration registration = server.getRegistrationService().getByEndpoint(clientEndpoint);
+            if (registration != null) {
+                EndpointTraffic traffic = trafficStats.get(clientEndpoint);
+                ObjectNode body = traffic != null ? mapper.valueToTree(traffic)
+                    : mapper.createObjectNode().put("endpoint", clientEndpoint);
+                Long smoothedRtt = rttEstimator.getSmoothedRtt(clientEndpoint);
+                if (smoothedRtt != null) {
+                    body.put("smoothedRtt", smoothedRtt);
+                }
+                Long smoothedLatency = rttEstimator.getSmoothedLatency(clientEndpoint);
+                if (smoothedLatency != null) {
+                    body.put("smoothedLatency", smoothedLatency);
+                }
+                body.put("timeout", rttEstimator.getTimeout(clientEndpoint));
+                resp.setContentType("application/json");
+                resp.getOutputStream().write(mapper.writeValueAsString(body).getBytes(StandardCharsets.UTF_8));
+                resp.setStatus(HttpServletResponse.SC_OK);
+            } else {
+                resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                resp.getWriter().format("No registered client with id '%s'", clientEndpoint).flush();
+            }
+            return;
+        }
+        // /read?paths=/3/0/1,/3/0/2 : read several paths, with a Read-Composite request when possible.
+        if (path.length == 2 && "read".equals(path[1])) {
+            try {
+                Registration registration = server.getRegistrationService().getByEndpoint(clientEndpoint);
+                if (registration != null) {
+                    List<LwM2mPath> paths = extractPaths(req);
+
+                    // get content format
+                    String contentFormatParam = req.getParameter(FORMAT_PARAM);
+                    ContentFormat contentFormat = contentFormatParam != null
+                        ? ContentFormat.fromName(contentFormatParam.toUpperCase())
+                        : null;
+
+                    readPaths(req, resp, registration, paths, contentFormat, extractMaxAge(req),
+                        extractTimeout(req, registration));
+                } else {
+                    resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                    resp.getWriter().format("No registered client with id '%s'", clientEndpoint).flush();
+                }
+            } catch (RuntimeException e) {
+                handleException(e, resp);
+            }
+            return;
+        }
+
         // /composite : do Read-Composite request.
         if (path.length == 2 && "composite".equals(path[1])) {
             try {
@@ -151,13 +263,12 @@ public class ClientServlet extends HttpServlet {
                     // create & process request
                     ReadCompositeRequest request = new ReadCompositeRequest(pathContentFormat, nodeContentFormat,
                         paths);
-                    ReadCompositeResponse cResponse = server.send(registration, request, extractTimeout(req));
-                    processDeviceResponse(req, resp, cResponse);
+                    sendAsync(req, resp, registration, request, extractTimeout(req, registration));
                 } else {
                     resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
                     resp.getWriter().format("No registered client with id '%s'", clientEndpoint).flush();
                 }
-            } catch (RuntimeException | InterruptedException e) {
+            } catch (RuntimeException e) {
                 handleException(e, resp);
             }
             return;
@@ -171,13 +282,12 @@ public class ClientServlet extends HttpServlet {
                 if (registration != null) {
                     // create & process request
                     DiscoverRequest request = new DiscoverRequest(target);
-                    DiscoverResponse cResponse = server.send(registration, request, extractTimeout(req));
-                    processDeviceResponse(req, resp, cResponse);
+                    sendAsync(req, resp, registration, request, extractTimeout(req, registration));
                 } else {
                     resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
                     resp.getWriter().format("No registered client with id '%s'", clientEndpoint).flush();
                 }
-            } catch (RuntimeException | InterruptedException e) {
+            } catch (RuntimeException e) {
                 handleException(e, resp);
             }
             return;
@@ -195,17 +305,127 @@ public class ClientServlet extends HttpServlet {
 
                 // create & process request
                 ReadRequest request = new ReadRequest(contentFormat, target);
-                ReadResponse cResponse = server.send(registration, request, extractTimeout(req));
-                processDeviceResponse(req, resp, cResponse);
+
+                // serve last known value if it is fresh enough
+                Long maxAge = extractMaxAge(req);
+                if (maxAge != null) {
+                    CachedValue cached = valueCache.get(registration.getId(), request.getPath(), maxAge);
+                    if (cached != null) {
+                        long age = System.currentTimeMillis() - cached.getTimestamp();
+                        resp.setHeader("Age", Long.toString(Math.max(0, age / 1000)));
+                        processDeviceResponse(req, resp, ReadResponse.success(cached.getNode()));
+                        return;
+                    }
+                }
+                sendAsync(req, resp, registration, request, extractTimeout(req, registration));
             } else {
                 resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
                 resp.getWriter().format("No registered client with id '%s'", clientEndpoint).flush();
             }
-        } catch (RuntimeException | InterruptedException e) {
+        } catch (RuntimeException e) {
             handleException(e, resp);
         }
     }
 
+    /**
+     * Stream all registrations matching the filter as a JSON array, one at a time, without materializing the whole
+     * fleet.
+     */
+    private void writeAllRegistrations(HttpServletResponse resp, RegistrationFilter filter) throws IOException {
+        Iterator<Registration> registrations = filter.isEmpty() ? server.getRegistrationService()
+            .getAllRegistrations() : registrationIndex.find(filter, null);
+
+        resp.setContentType("application/json");
+        resp.setStatus(HttpServletResponse.SC_OK);
+        try (JsonGenerator gen = mapper.getFactory().createGenerator(resp.getOutputStream())) {
+            gen.writeStartArray();
+            while (registrations.hasNext()) {
+                streamWriter.writeValue(gen, registrations.next());
+            }
+            gen.writeEndArray();
+        }
+    }
+
+    /**
+     * Write one page of registrations ordered by endpoint name.
+     * <p>
+     * The cursor is the (encoded) last endpoint of the previous page, so pages stay consistent even if registrations
+     * come and go between calls. The page is read from the {@link RegistrationIndex}, starting right after the cursor.
+     */
+    private void writeRegistrationPage(
+        HttpServletRequest req, HttpServletResponse resp, RegistrationFilter filter, String limitParam
+    ) throws IOException {
+        int limit;
+        String after = null;
+        try {
+            limit = Integer.parseInt(limitParam);
+            if (limit < 1 || limit > MAX_LIMIT) {
+                throw new IllegalArgumentException(String.format("limit must be between 1 and %d", MAX_LIMIT));
+            }
+            String cursorParam = req.getParameter(CURSOR_PARAM);
+            if (cursorParam != null && !cursorParam.isEmpty()) {
+                after = new String(Base64.getUrlDecoder().decode(cursorParam), StandardCharsets.UTF_8);
+            }
+        } catch (IllegalArgumentException e) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid limit or cursor: " + e.getMessage());
+            return;
+        }
+
+        Iterator<Registration> registrations = registrationIndex.find(filter, after);
+
+        resp.setContentType("application/json");
+        resp.setStatus(HttpServletResponse.SC_OK);
+        try (JsonGenerator gen = mapper.getFactory().createGenerator(resp.getOutputStream())) {
+            gen.writeStartObject();
+            gen.writeArrayFieldStart("registrations");
+            String last = null;
+            for (int i = 0; i < limit && registrations.hasNext(); i++) {
+                Registration registration = registrations.next();
+                streamWriter.writeValue(gen, registration);
+                last = registration.getEndpoint();
+            }
+            gen.writeEndArray();
+            if (last != null && registrations.hasNext()) {
+                gen.writeStringField("nextCursor",
+                    Base64.getUrlEncoder().withoutPadding().encodeToString(last.getBytes(StandardCharsets.UTF_8)));
+            }
+            gen.writeEndObject();
+        }
+    }
+
+    /**
+     * Build a registration filter from query parameters : <code>prefix</code>, <code>version</code>,
+     * <code>binding</code>, <code>queuemode</code>, <code>object</code> and repeatable <code>attr=name:value</code>.
+     */
+    private RegistrationFilter extractFilter(HttpServletRequest req) {
+        RegistrationFilter filter = new RegistrationFilter();
+        filter.prefix(req.getParameter(PREFIX_PARAM));
+        filter.lwM2mVersion(req.getParameter(VERSION_PARAM));
+        String binding = req.getParameter(BINDING_PARAM);
+        if (binding != null) {
+            filter.bindingMode(BindingMode.valueOf(binding.toUpperCase()));
+        }
+        String queueMode = req.getParameter(QUEUEMODE_PARAM);
+        if (queueMode != null) {
+            filter.queueMode(Boolean.valueOf(queueMode));
+        }
+        String objectId = req.getParameter(OBJECT_PARAM);
+        if (objectId != null) {
+            filter.objectId(Integer.valueOf(objectId));
+        }
+        String[] attributes = req.getParameterValues(ATTRIBUTE_PARAM);
+        if (attributes != null) {
+            for (String attribute : attributes) {
+                int separator = attribute.indexOf(':');
+                if (separator < 1) {
+                    throw new IllegalArgumentException("attr must be formatted as name:value");
+                }
+                filter.attribute(attribute.substring(0, separator), attribute.substring(separator + 1));
+            }
+        }
+        return filter;
+    }
+
     private void handleException(Exception e, HttpServletResponse resp) throws IOException {
         if (e instanceof InvalidRequestException || e instanceof CodecException
             || e instanceof ClientSleepingException) {
@@ -224,6 +444,19 @@ public class ClientServlet extends HttpServlet {
             LOG.warn("Invalid response", e);
             resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
             resp.getWriter().append("Invalid Response:").append(e.getMessage()).flush();
+        } else if (e instanceof CircuitOpenException) {
+            LOG.debug("Request not sent", e);
+            resp.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            resp.setHeader("Retry-After", Long.toString(((CircuitOpenException) e).getRetryAfter()));
+            resp.getWriter().append("Device unreachable:").append(e.getMessage()).flush();
+        } else if (e instanceof QueueFullException) {
+            LOG.warn("Unable to defer request", e);
+            resp.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            resp.getWriter().append("Unable to defer request:").append(e.getMessage()).flush();
+        } else if (e instanceof TimeoutException) {
+            LOG.warn("Request timeout", e);
+            resp.setStatus(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+            resp.getWriter().append("Request timeout").flush();
         } else if (e instanceof InterruptedException) {
             LOG.warn("Thread Interrupted", e);
             resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
@@ -259,14 +492,13 @@ public class ClientServlet extends HttpServlet {
                     Map<LwM2mPath, LwM2mNode> values = mapper.readValue(content,
                         new TypeReference<HashMap<LwM2mPath, LwM2mNode>>() {});
                     // create & process request
-                    WriteCompositeResponse cResponse = server.send(registration,
-                        new WriteCompositeRequest(nodeContentFormat, values, null), extractTimeout(req));
-                    processDeviceResponse(req, resp, cResponse);
+                    WriteCompositeRequest request = new WriteCompositeRequest(nodeContentFormat, values, null);
+                    sendAsync(req, resp, registration, request, extractTimeout(req, registration));
                 } else {
                     resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
                     resp.getWriter().format("no registered client with id '%s'", clientEndpoint).flush();
                 }
-            } catch (RuntimeException | InterruptedException e) {
+            } catch (RuntimeException e) {
                 handleException(e, resp);
             }
             return;
@@ -288,8 +520,7 @@ public class ClientServlet extends HttpServlet {
                     LwM2mAttributeSet attributes = new LwM2mAttributeSet(
                         attributeParser.parseQueryParams(req.getQueryString()));
                     WriteAttributesRequest request = new WriteAttributesRequest(target, attributes);
-                    WriteAttributesResponse cResponse = server.send(registration, request, extractTimeout(req));
-                    processDeviceResponse(req, resp, cResponse);
+                    sendAsync(req, resp, registration, request, extractTimeout(req, registration));
                 } else {
                     // get content format
                     String contentFormatParam = req.getParameter(FORMAT_PARAM);
@@ -305,14 +536,13 @@ public class ClientServlet extends HttpServlet {
                     LwM2mNode node = extractLwM2mNode(target, req, new LwM2mPath(target));
                     WriteRequest request = new WriteRequest(replace ? Mode.REPLACE : Mode.UPDATE, contentFormat, target,
                         node);
-                    WriteResponse cResponse = server.send(registration, request, extractTimeout(req));
-                    processDeviceResponse(req, resp, cResponse);
+                    sendAsync(req, resp, registration, request, extractTimeout(req, registration));
                 }
             } else {
                 resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
                 resp.getWriter().format("No registered client with id '%s'", clientEndpoint).flush();
             }
-        } catch (RuntimeException | InterruptedException | InvalidAttributeException e) {
+        } catch (RuntimeException | InvalidAttributeException e) {
             handleException(e, resp);
         }
     }
@@ -347,13 +577,12 @@ public class ClientServlet extends HttpServlet {
                     // create & process request
                     ObserveCompositeRequest request = new ObserveCompositeRequest(pathContentFormat, nodeContentFormat,
                         paths);
-                    ObserveCompositeResponse cResponse = server.send(registration, request, extractTimeout(req));
-                    processDeviceResponse(req, resp, cResponse);
+                    sendAsync(req, resp, registration, request, extractTimeout(req, registration));
                 } else {
                     resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
                     resp.getWriter().format("No registered client with id '%s'", clientEndpoint).flush();
                 }
-            } catch (RuntimeException | InterruptedException e) {
+            } catch (RuntimeException e) {
                 handleException(e, resp);
             }
             return;
@@ -372,13 +601,12 @@ public class ClientServlet extends HttpServlet {
 
                     // create & process request
                     ObserveRequest request = new ObserveRequest(contentFormat, target);
-                    ObserveResponse cResponse = server.send(registration, request, extractTimeout(req));
-                    processDeviceResponse(req, resp, cResponse);
+                    sendAsync(req, resp, registration, request, extractTimeout(req, registration));
                 } else {
                     resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
                     resp.getWriter().format("no registered client with id '%s'", clientEndpoint).flush();
                 }
-            } catch (RuntimeException | InterruptedException e) {
+            } catch (RuntimeException e) {
                 handleException(e, resp);
             }
             return;
@@ -396,13 +624,12 @@ public class ClientServlet extends HttpServlet {
                         params = IOUtils.toString(req.getInputStream(), StandardCharsets.UTF_8);
                     }
                     ExecuteRequest request = new ExecuteRequest(target, params);
-                    ExecuteResponse cResponse = server.send(registration, request, extractTimeout(req));
-                    processDeviceResponse(req, resp, cResponse);
+                    sendAsync(req, resp, registration, request, extractTimeout(req, registration));
                 } else {
                     resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
                     resp.getWriter().format("no registered client with id '%s'", clientEndpoint).flush();
                 }
-            } catch (RuntimeException | InterruptedException e) {
+            } catch (RuntimeException e) {
                 handleException(e, resp);
             }
             return;
@@ -429,8 +656,7 @@ public class ClientServlet extends HttpServlet {
                             request = new CreateRequest(contentFormat, target, (LwM2mObjectInstance) node);
                         }
 
-                        CreateResponse cResponse = server.send(registration, request, extractTimeout(req));
-                        processDeviceResponse(req, resp, cResponse);
+                        sendAsync(req, resp, registration, request, extractTimeout(req, registration));
                     } else {
                         throw new IllegalArgumentException("payload must contain an object instance");
                     }
@@ -438,7 +664,7 @@ public class ClientServlet extends HttpServlet {
                     resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
                     resp.getWriter().format("no registered client with id '%s'", clientEndpoint).flush();
                 }
-            } catch (RuntimeException | InterruptedException e) {
+            } catch (RuntimeException e) {
                 handleException(e, resp);
             }
         }
@@ -494,17 +720,193 @@ public class ClientServlet extends HttpServlet {
             Registration registration = server.getRegistrationService().getByEndpoint(clientEndpoint);
             if (registration != null) {
                 DeleteRequest request = new DeleteRequest(target);
-                DeleteResponse cResponse = server.send(registration, request, extractTimeout(req));
-                processDeviceResponse(req, resp, cResponse);
+                sendAsync(req, resp, registration, request, extractTimeout(req, registration));
             } else {
                 resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
                 resp.getWriter().format("no registered client with id '%s'", clientEndpoint).flush();
             }
-        } catch (RuntimeException | InterruptedException e) {
+        } catch (RuntimeException e) {
             handleException(e, resp);
         }
     }
 
+    /**
+     * Send a request to the device without blocking the HTTP thread.
+     * <p>
+     * The HTTP request is put in asynchronous mode and completed from the Leshan callbacks, so a Jetty worker is only
+     * used to write the final response and never waits for the CoAP round-trip.
+     * <p>
+     * With the <code>defer</code> parameter, a request to a sleeping queue mode client is queued until the client
+     * wakes up instead of failing, and a <code>202 Accepted</code> pointing to the deferred job is returned.
+     */
+    private <T extends LwM2mResponse> void sendAsync(
+        HttpServletRequest req, HttpServletResponse resp, Registration registration, DownlinkRequest<T> request,
+        long timeout
+    ) throws IOException {
+        Long deferTtl = extractDefer(req);
+        String callbackUrl = extractCallback(req);
+        if (deferTtl != null && registration.usesQueueMode()
+            && !server.getPresenceService().isClientAwake(registration)) {
+            defer(req, resp, registration, request, timeout, deferTtl, callbackUrl);
+            return;
+        }
+
+        AtomicBoolean done = new AtomicBoolean(false);
+        AsyncContext async = startAsync(req, resp, timeout, done);
+
+        ResponseCallback<T> onResponse = response -> {
+            valueCache.onResponse(registration, request, response);
+            complete(async, done, () -> {
+                processDeviceResponse(req, resp, response);
+            });
+        };
+        ErrorCallback onError = e -> complete(async, done, () -> {
+            if (deferTtl != null && e instanceof ClientSleepingException) {
+                // client fell asleep before we sent the request
+                try {
+                    defer(req, resp, registration, request, timeout, deferTtl, callbackUrl);
+                } catch (QueueFullException qfe) {
+                    handleException(qfe, resp);
+                }
+            } else {
+                handleException(e, resp);
+            }
+        });
+        try {
+            coalescer.send(registration, request, timeout, onResponse, onError);
+        } catch (RuntimeException e) {
+            onError.onError(e);
+        }
+    }
+
+    /**
+     * Read several paths at once : with one Read-Composite request when the device supports it, else with pipelined
+     * single reads. Paths with a fresh enough last known value (<code>maxAge</code>) are not read again.
+     */
+    private void readPaths(
+        HttpServletRequest req, HttpServletResponse resp, Registration registration, List<LwM2mPath> paths,
+        ContentFormat contentFormat, Long maxAge, long timeout
+    ) throws IOException {
+        Map<LwM2mPath, LwM2mNode> cached = new HashMap<>();
+        List<LwM2mPath> toRead = new ArrayList<>();
+        for (LwM2mPath path : paths) {
+            CachedValue value = maxAge != null ? valueCache.get(registration.getId(), path, maxAge) : null;
+            if (value != null) {
+                cached.put(path, value.getNode());
+            } else {
+                toRead.add(path);
+            }
+        }
+        if (toRead.isEmpty()) {
+            writeMultiReadResult(resp, paths, cached, null);
+            return;
+        }
+
+        AtomicBoolean done = new AtomicBoolean(false);
+        AsyncContext async = startAsync(req, resp, multiPathReader.maxDuration(toRead.size(), timeout), done);
+        multiPathReader.read(registration, toRead, contentFormat, timeout, result -> complete(async, done, () -> {
+            writeMultiReadResult(resp, paths, cached, result);
+        }));
+    }
+
+    private void writeMultiReadResult(
+        HttpServletResponse resp, List<LwM2mPath> paths, Map<LwM2mPath, LwM2mNode> cached,
+        MultiPathReader.Result result
+    ) throws IOException {
+        Map<String, LwM2mNode> content = new LinkedHashMap<>();
+        Map<String, String> errors = new LinkedHashMap<>();
+        for (LwM2mPath path : paths) {
+            LwM2mNode node = cached.get(path);
+            if (node == null && result != null) {
+                node = result.getContent().get(path);
+            }
+            if (node != null) {
+                content.put(path.toString(), node);
+            } else if (result != null && result.getErrors().containsKey(path)) {
+                errors.put(path.toString(), result.getErrors().get(path));
+            }
+        }
+
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("mode", result != null ? result.getMode().toString() : "CACHE");
+        body.put("content", content);
+        if (!errors.isEmpty()) {
+            body.put("errors", errors);
+        }
+        resp.setContentType("application/json");
+        resp.getOutputStream().write(mapper.writeValueAsString(body).getBytes(StandardCharsets.UTF_8));
+        resp.setStatus(HttpServletResponse.SC_OK);
+    }
+
+    /**
+     * Put the HTTP request in asynchronous mode. Leshan always calls back (at worst with a TimeoutException), so the
+     * asynchronous timeout is only a safety net.
+     */
+    private AsyncContext startAsync(
+        HttpServletRequest req, HttpServletResponse resp, long timeout, AtomicBoolean done
+    ) {
+        AsyncContext async = req.startAsync();
+        async.setTimeout(timeout + ASYNC_GRACE_PERIOD);
+        async.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent event) throws IOException {
+                if (done.compareAndSet(false, true)) {
+                    processDeviceResponse(req, resp, null);
+                    async.complete();
+                }
+            }
+
+            @Override
+            public void onComplete(AsyncEvent event) {
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                done.set(true);
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+        return async;
+    }
+
+    /**
+     * Write the response from a container thread, so Californium threads are never blocked by slow HTTP clients.
+     */
+    private void complete(AsyncContext async, AtomicBoolean done, ResponseWriter writer) {
+        if (!done.compareAndSet(false, true)) {
+            return;
+        }
+        async.start(() -> {
+            try {
+                writer.write();
+            } catch (IOException | RuntimeException e) {
+                LOG.warn("Unable to write response", e);
+            } finally {
+                async.complete();
+            }
+        });
+    }
+
+    private void defer(
+        HttpServletRequest req, HttpServletResponse resp, Registration registration,
+        DownlinkRequest<? extends LwM2mResponse> request, long timeout, long ttl, String callbackUrl
+    ) throws IOException {
+        DeferredJob job = deferredQueue.enqueue(
+            new DeferredJob(registration.getEndpoint(), request, timeout, ttl, callbackUrl));
+        LOG.debug("Request {}{} deferred as job {}", req.getServletPath(), req.getPathInfo(), job.getId());
+        resp.setContentType("application/json");
+        resp.setHeader("Location", req.getContextPath() + "/api/jobs/" + job.getId());
+        resp.getOutputStream().write(mapper.writeValueAsString(job).getBytes());
+        resp.setStatus(HttpServletResponse.SC_ACCEPTED);
+    }
+
+    private interface ResponseWriter {
+        void write() throws IOException;
+    }
+
     private void processDeviceResponse(
         HttpServletRequest req, HttpServletResponse resp, LwM2mResponse cResponse
     ) throws IOException {
@@ -539,19 +941,88 @@ public class ClientServlet extends HttpServlet {
         throw new InvalidRequestException("content type %s not supported", req.getContentType());
     }
 
-    private long extractTimeout(HttpServletRequest req) {
-        // get content format
+    private List<LwM2mPath> extractPaths(HttpServletRequest req) {
+        String pathParam = req.getParameter(PATH_PARAM);
+        if (pathParam == null || pathParam.isEmpty()) {
+            throw new InvalidRequestException("missing %s parameter", PATH_PARAM);
+        }
+        String[] stringPaths = pathParam.split(",");
+        if (stringPaths.length > MAX_PATHS) {
+            throw new InvalidRequestException("too many paths (max %d)", MAX_PATHS);
+        }
+        List<LwM2mPath> paths = new ArrayList<>(stringPaths.length);
+        for (String stringPath : stringPaths) {
+            try {
+                paths.add(new LwM2mPath(stringPath.trim()));
+            } catch (IllegalArgumentException e) {
+                throw new InvalidRequestException(e, "invalid path %s", stringPath);
+            }
+        }
+        return paths;
+    }
+
+    private Long extractMaxAge(HttpServletRequest req) {
+        String maxAgeParam = req.getParameter(MAX_AGE_PARAM);
+        if (maxAgeParam == null) {
+            return null;
+        }
+        try {
+            return Long.parseLong(maxAgeParam) * 1000;
+        } catch (NumberFormatException e) {
+            throw new InvalidRequestException("invalid maxAge %s", maxAgeParam);
+        }
+    }
+
+    private Long extractDefer(HttpServletRequest req) {
+        String deferParam = req.getParameter(DEFER_PARAM);
+        if (deferParam == null) {
+            return null;
+        }
+        try {
+            long ttl = Long.parseLong(deferParam);
+            if (ttl <= 0) {
+                throw new InvalidRequestException("invalid defer %s : must be positive", deferParam);
+            }
+            return ttl * 1000;
+        } catch (NumberFormatException e) {
+            throw new InvalidRequestException("invalid defer %s", deferParam);
+        }
+    }
+
+    /**
+     * @return the absolute http(s) URL the result of a deferred job is POSTed to, <code>null</code> if none.
+     */
+    private String extractCallback(HttpServletRequest req) {
+        String callbackParam = req.getParameter(CALLBACK_PARAM);
+        if (callbackParam == null) {
+            return null;
+        }
+        URI callback;
+        try {
+            callback = URI.create(callbackParam);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidRequestException(e, "invalid callback %s", callbackParam);
+        }
+        if (!callback.isAbsolute() || callback.getHost() == null
+            || !("http".equalsIgnoreCase(callback.getScheme()) || "https".equalsIgnoreCase(callback.getScheme()))) {
+            throw new InvalidRequestException("invalid callback %s : must be an absolute http(s) URL", callbackParam);
+        }
+        return callbackParam;
+    }
+
+    /**
+     * Timeout given by the caller (<code>500ms</code>, <code>5s</code> or a number of seconds), else the adaptive
+     * timeout of the device.
+     */
+    private long extractTimeout(HttpServletRequest req, Registration registration) {
         String timeoutParam = req.getParameter(TIMEOUT_PARAM);
-        long timeout;
         if (timeoutParam != null) {
             try {
-                timeout = Long.parseLong(timeoutParam) * 1000;
+                return Durations.parseMillis(timeoutParam);
             } catch (NumberFormatException e) {
-                timeout = DEFAULT_TIMEOUT;
+                LOG.debug("Invalid timeout {}, using adaptive timeout", timeoutParam);
             }
-        } else {
-            timeout = DEFAULT_TIMEOUT;
         }
-        return timeout;
+        return rttEstimator.getTimeout(registration.getEndpoint());
     }
 }
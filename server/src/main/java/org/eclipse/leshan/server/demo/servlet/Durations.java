@@ -0,0 +1,44 @@
+/*******************************************************************************
+ * Copyright (c) 2023 Sierra Wireless and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * <p>
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v20.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * <p>
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.demo.servlet;
+
+/**
+ * Parse durations given as request parameters : <code>500ms</code>, <code>5s</code> or a number of seconds.
+ */
+final class Durations {
+
+    private Durations() {
+    }
+
+    /**
+     * @return the duration in milliseconds.
+     * @throws NumberFormatException if the value is not a valid positive duration.
+     */
+    static long parseMillis(String value) {
+        long millis;
+        if (value.endsWith("ms")) {
+            millis = Long.parseLong(value.substring(0, value.length() - 2).trim());
+        } else if (value.endsWith("s")) {
+            millis = Long.parseLong(value.substring(0, value.length() - 1).trim()) * 1000;
+        } else {
+            millis = Long.parseLong(value.trim()) * 1000;
+        }
+        if (millis <= 0) {
+            throw new NumberFormatException(String.format("duration must be positive : %s", value));
+        }
+        return millis;
+    }
+}
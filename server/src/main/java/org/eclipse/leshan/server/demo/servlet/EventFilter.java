@@ -0,0 +1,134 @@
+/*******************************************************************************
+ * Copyright (c) 2023 Sierra Wireless and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * <p>
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v20.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * <p>
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.demo.servlet;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+import org.eclipse.leshan.core.node.LwM2mPath;
+
+/**
+ * Event type and LwM2M path prefix filter of an event subscriber, parsed once when it subscribes.
+ * <p>
+ * The path filter only applies to events about some paths (notifications, send), other events are only filtered by
+ * type. An event about several paths matches if one of them matches.
+ */
+final class EventFilter {
+
+    static final EventFilter ALL = new EventFilter(null, null);
+
+    // null means all types
+    private final Set<String> types;
+    // null means all paths
+    private final List<LwM2mPath> pathPrefixes;
+
+    private EventFilter(Set<String> types, List<LwM2mPath> pathPrefixes) {
+        this.types = types;
+        this.pathPrefixes = pathPrefixes;
+    }
+
+    /**
+     * @param types comma separated event types, <code>null</code> or empty for all types.
+     * @param paths comma separated LwM2M path prefixes, <code>null</code> or empty for all paths.
+     * @param knownTypes the valid event types.
+     * @throws IllegalArgumentException if a type is unknown or a path is invalid.
+     */
+    static EventFilter parse(String types, String paths, Collection<String> knownTypes) {
+        Set<String> typeSet = null;
+        if (types != null && !types.trim().isEmpty()) {
+            typeSet = new HashSet<>();
+            for (String type : types.split(",")) {
+                String normalized = type.trim().toUpperCase();
+                if (!knownTypes.contains(normalized)) {
+                    throw new IllegalArgumentException(String.format("unknown event type %s", type));
+                }
+                typeSet.add(normalized);
+            }
+        }
+        List<LwM2mPath> prefixes = null;
+        if (paths != null && !paths.trim().isEmpty()) {
+            prefixes = new ArrayList<>();
+            for (String path : paths.split(",")) {
+                try {
+                    LwM2mPath prefix = new LwM2mPath(path.trim());
+                    if (prefix.isRoot()) {
+                        // matches everything
+                        prefixes = null;
+                        break;
+                    }
+                    prefixes.add(prefix);
+                } catch (RuntimeException e) {
+                    throw new IllegalArgumentException(String.format("invalid path %s", path), e);
+                }
+            }
+        }
+        if (typeSet == null && prefixes == null) {
+            return ALL;
+        }
+        return new EventFilter(typeSet == null ? null : Collections.unmodifiableSet(typeSet),
+                prefixes == null ? null : Collections.unmodifiableList(prefixes));
+    }
+
+    /**
+     * @return <code>true</code> if events of this type may match.
+     */
+    boolean acceptsType(String type) {
+        return types == null || types.contains(type);
+    }
+
+    /**
+     * @return <code>true</code> only if this type was explicitly listed, not when all types are accepted.
+     */
+    boolean listsType(String type) {
+        return types != null && types.contains(type);
+    }
+
+    /**
+     * @param paths the paths the event is about, <code>null</code> if the event is not about paths.
+     */
+    boolean accepts(String type, Collection<LwM2mPath> paths) {
+        if (!acceptsType(type)) {
+            return false;
+        }
+        if (pathPrefixes == null || paths == null) {
+            return true;
+        }
+        for (LwM2mPath path : paths) {
+            for (LwM2mPath prefix : pathPrefixes) {
+                if (startsWith(path, prefix)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean startsWith(LwM2mPath path, LwM2mPath prefix) {
+        return level(prefix.getObjectId(), path.getObjectId())
+                && level(prefix.getObjectInstanceId(), path.getObjectInstanceId())
+                && level(prefix.getResourceId(), path.getResourceId())
+                && level(prefix.getResourceInstanceId(), path.getResourceInstanceId());
+    }
+
+    private static boolean level(Integer prefix, Integer path) {
+        return prefix == null || Objects.equals(prefix, path);
+    }
+}
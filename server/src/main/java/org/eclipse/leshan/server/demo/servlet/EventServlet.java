@@ -18,15 +18,23 @@
 package org.eclipse.leshan.server.demo.servlet;
 
 import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.module.SimpleModule;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.http.HttpServlet;
 import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import jline.internal.Log;
 import org.eclipse.californium.core.network.Endpoint;
-import org.eclipse.jetty.servlets.EventSource;
-import org.eclipse.jetty.servlets.EventSourceServlet;
 import org.eclipse.leshan.core.link.Link;
 import org.eclipse.leshan.core.node.LwM2mNode;
 import org.eclipse.leshan.core.node.LwM2mPath;
@@ -37,6 +45,7 @@ import org.eclipse.leshan.core.observation.SingleObservation;
 import org.eclipse.leshan.core.request.SendRequest;
 import org.eclipse.leshan.core.response.ObserveCompositeResponse;
 import org.eclipse.leshan.core.response.ObserveResponse;
+import org.eclipse.leshan.core.util.NamedThreadFactory;
 import org.eclipse.leshan.server.californium.LeshanServer;
 import org.eclipse.leshan.server.demo.servlet.json.JacksonLinkSerializer;
 import org.eclipse.leshan.server.demo.servlet.json.JacksonLwM2mNodeSerializer;
@@ -53,11 +62,31 @@ import org.eclipse.leshan.server.send.SendListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
 
-public class EventServlet extends EventSourceServlet {
+/**
+ * Server-Sent Events stream of registration, presence, notification, send and CoAP log events.
+ * <p>
+ * Each event gets a monotonic id. Recent events are kept in a bounded replay buffer, so a browser reconnecting with a
+ * <code>Last-Event-ID</code> header receives the events it missed. If some of them are no more available, a
+ * <code>RESYNC</code> event tells the client to reload its state.
+ */
+public class EventServlet extends HttpServlet {
 
     private static final String EVENT_DEREGISTRATION = "DEREGISTRATION";
 
@@ -75,17 +104,77 @@ public class EventServlet extends EventSourceServlet {
 
     private static final String EVENT_COAP_LOG = "COAPLOG";
 
+    private static final String EVENT_RESYNC = "RESYNC";
+
     private static final String QUERY_PARAM_ENDPOINT = "ep";
 
+    private static final String QUERY_PARAM_CONFLATE = "conflate";
+
+    private static final String QUERY_PARAM_TYPES = "types";
+
+    private static final String QUERY_PARAM_PATHS = "paths";
+
+    // event types a subscriber can filter on, RESYNC is always delivered
+    private static final List<String> EVENT_TYPES = Arrays.asList(EVENT_REGISTRATION, EVENT_UPDATED,
+        EVENT_DEREGISTRATION, EVENT_SLEEPING, EVENT_AWAKE, EVENT_NOTIFICATION, EVENT_SEND, EVENT_COAP_LOG);
+
+    private static final String HEADER_LAST_EVENT_ID = "Last-Event-ID";
+
+    private static final long MIN_CONFLATION_WINDOW = 10; // ms
+
+    private static final long MAX_CONFLATION_WINDOW = 60_000; // ms
+
+    // max number of events waiting to be written to one subscriber
+    private static final int QUEUE_CAPACITY = 1024;
+
+    // a subscriber dropping events for longer than this is disconnected
+    private static final long SLOW_CONSUMER_GRACE_PERIOD = 10_000; // ms
+
+    // number of recent events kept for reconnecting subscribers, must be a power of 2
+    private static final int REPLAY_BUFFER_SIZE = 1024;
+
+    // events are still recorded for this long after the last subscriber left, so it can resume
+    private static final long REPLAY_RETENTION = 5 * 60 * 1000; // ms
+
+    private static final long HEARTBEAT_PERIOD = 10; // s
+
+    private static final byte[] HEARTBEAT = ":\n\n".getBytes(StandardCharsets.UTF_8);
+
     private static final long serialVersionUID = 1L;
 
     private static final Logger LOG = LoggerFactory.getLogger(EventServlet.class);
 
     private final ObjectMapper mapper;
 
+    // same serializers as mapper, for the binary frames of the websocket
+    private final ObjectMapper cborMapper;
+
     private final CoapMessageTracer coapMessageTracer;
 
-    private final Set<LeshanEventSource> eventSources = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    // subscribers without endpoint filter
+    private final Set<LeshanEventSource> allEndpointsSources = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    // subscribers of a given endpoint
+    private final Map<String, Set<LeshanEventSource>> eventSourcesByEndpoint = new ConcurrentHashMap<>();
+
+    // each subscriber is drained by its own task, a slow connection only blocks its own writer
+    private final ExecutorService writers = Executors.newCachedThreadPool(new NamedThreadFactory("Event Writer"));
+
+    // flushes conflated events at the end of each subscriber window, and sends heartbeats
+    private final ScheduledExecutorService scheduler = Executors
+        .newSingleThreadScheduledExecutor(new NamedThreadFactory("Event Scheduler"));
+
+    private final AtomicLong lastEventId = new AtomicLong();
+    private final ReplayBuffer replayBuffer = new ReplayBuffer(REPLAY_BUFFER_SIZE);
+    // id of the last event before some events were not recorded, -1 if all events were recorded
+    private volatile long lostAfter = -1;
+    private volatile long lastSubscriberLeft;
+
+    private final AtomicLong dispatchedEvents = new AtomicLong();
+    private final AtomicLong droppedEvents = new AtomicLong();
+    private final AtomicLong slowConsumers = new AtomicLong();
+    private final AtomicLong conflatedEvents = new AtomicLong();
+    private final AtomicLong replayedEvents = new AtomicLong();
 
     private final RegistrationListener registrationListener = new RegistrationListener() {
 
@@ -93,39 +182,27 @@ public class EventServlet extends EventSourceServlet {
         public void registered(
             Registration registration, Registration previousReg, Collection<Observation> previousObservations
         ) {
-            try {
-                String jReg = EventServlet.this.mapper.writeValueAsString(registration);
-                sendEvent(EVENT_REGISTRATION, jReg, registration.getEndpoint());
-            } catch (JsonProcessingException e) {
-                throw new RuntimeException(e);
-            }
+            sendEvent(EVENT_REGISTRATION, registration.getEndpoint(), () -> registration);
         }
 
         @Override
         public void updated(
             RegistrationUpdate update, Registration updatedRegistration, Registration previousRegistration
         ) {
-            RegUpdate regUpdate = new RegUpdate();
-            regUpdate.registration = updatedRegistration;
-            regUpdate.update = update;
-            try {
-                String jReg = EventServlet.this.mapper.writeValueAsString(regUpdate);
-                sendEvent(EVENT_UPDATED, jReg, updatedRegistration.getEndpoint());
-            } catch (JsonProcessingException e) {
-                throw new RuntimeException(e);
-            }
+            // successive updates of a registration can be conflated
+            sendEvent(EVENT_UPDATED, updatedRegistration.getEndpoint(), EVENT_UPDATED, null, () -> {
+                RegUpdate regUpdate = new RegUpdate();
+                regUpdate.registration = updatedRegistration;
+                regUpdate.update = update;
+                return regUpdate;
+            });
         }
 
         @Override
         public void unregistered(
             Registration registration, Collection<Observation> observations, boolean expired, Registration newReg
         ) {
-            try {
-                String jReg = EventServlet.this.mapper.writeValueAsString(registration);
-                sendEvent(EVENT_DEREGISTRATION, jReg, registration.getEndpoint());
-            } catch (JsonProcessingException e) {
-                throw new RuntimeException(e);
-            }
+            sendEvent(EVENT_DEREGISTRATION, registration.getEndpoint(), () -> registration);
         }
     };
 
@@ -133,15 +210,14 @@ public class EventServlet extends EventSourceServlet {
 
         @Override
         public void onSleeping(Registration registration) {
-            String data = "{\"ep\":\"" + registration.getEndpoint() + "\"}";
-
-            sendEvent(EVENT_SLEEPING, data, registration.getEndpoint());
+            sendEvent(EVENT_SLEEPING, registration.getEndpoint(),
+                () -> Collections.singletonMap("ep", registration.getEndpoint()));
         }
 
         @Override
         public void onAwake(Registration registration) {
-            String data = "{\"ep\":\"" + registration.getEndpoint() + "\"}";
-            sendEvent(EVENT_AWAKE, data, registration.getEndpoint());
+            sendEvent(EVENT_AWAKE, registration.getEndpoint(),
+                () -> Collections.singletonMap("ep", registration.getEndpoint()));
         }
     };
 
@@ -158,16 +234,16 @@ public class EventServlet extends EventSourceServlet {
                 LOG.debug("Received notification from [{}] containing value [{}]", observation.getPath(),
                     response.getContent());
             }
-            try {
-                String jsonContent = mapper.writeValueAsString(response.getContent());
-                if (registration != null) {
-                    String data = "{\"ep\":\"" + registration.getEndpoint() + "\",\"kind\":\"single\",\"res\":\""
-                        + observation.getPath() + "\",\"val\":" + jsonContent + "}";
-
-                    sendEvent(EVENT_NOTIFICATION, data, registration.getEndpoint());
-                }
-            } catch (JsonProcessingException e) {
-                throw new RuntimeException(e);
+            if (registration != null) {
+                sendEvent(EVENT_NOTIFICATION, registration.getEndpoint(), observation.getPath(),
+                    Collections.singletonList(observation.getPath()), () -> {
+                    Map<String, Object> notification = new LinkedHashMap<>();
+                    notification.put("ep", registration.getEndpoint());
+                    notification.put("kind", "single");
+                    notification.put("res", observation.getPath().toString());
+                    notification.put("val", response.getContent());
+                    return notification;
+                });
             }
         }
 
@@ -178,22 +254,20 @@ public class EventServlet extends EventSourceServlet {
             if (LOG.isDebugEnabled()) {
                 LOG.debug("Received composite notification from [{}] containing value [{}]", response.getContent());
             }
-            try {
-                String jsonContent = mapper.writeValueAsString(response.getContent());
-                List<String> paths = new ArrayList<>();
-                for (LwM2mPath path : response.getObservation().getPaths()) {
-                    paths.add(path.toString());
-                }
-                String jsonListOfPath = mapper.writeValueAsString(paths);
-                if (registration != null) {
-                    String data =
-                        "{\"ep\":\"" + registration.getEndpoint() + "\",\"kind\":\"composite\",\"val\":" + jsonContent
-                            + ",\"paths\":" + jsonListOfPath + "}";
-
-                    sendEvent(EVENT_NOTIFICATION, data, registration.getEndpoint());
-                }
-            } catch (JsonProcessingException e) {
-                throw new RuntimeException(e);
+            if (registration != null) {
+                sendEvent(EVENT_NOTIFICATION, registration.getEndpoint(), observation.getPaths(),
+                    observation.getPaths(), () -> {
+                    List<String> paths = new ArrayList<>();
+                    for (LwM2mPath path : response.getObservation().getPaths()) {
+                        paths.add(path.toString());
+                    }
+                    Map<String, Object> notification = new LinkedHashMap<>();
+                    notification.put("ep", registration.getEndpoint());
+                    notification.put("kind", "composite");
+                    notification.put("val", response.getContent());
+                    notification.put("paths", paths);
+                    return notification;
+                });
             }
         }
 
@@ -220,20 +294,12 @@ public class EventServlet extends EventSourceServlet {
             }
 
             if (registration != null) {
-                try {
-                    String jsonContent = EventServlet.this.mapper.writeValueAsString(data.getNodes());
-
-                    String eventData = "{\"ep\":\"" //
-                        + registration.getEndpoint() //
-                        + "\",\"val\":" //
-                        + jsonContent //
-                        + "}" //
-                        ; //
-
-                    sendEvent(EVENT_SEND, eventData, registration.getEndpoint());
-                } catch (JsonProcessingException e) {
-                    Log.warn(String.format("Error while processing json [%s] : [%s]", data, e.getMessage()));
-                }
+                sendEvent(EVENT_SEND, registration.getEndpoint(), null, data.getNodes().keySet(), () -> {
+                    Map<String, Object> send = new LinkedHashMap<>();
+                    send.put("ep", registration.getEndpoint());
+                    send.put("val", data.getNodes());
+                    return send;
+                });
             }
         }
 
@@ -255,7 +321,7 @@ public class EventServlet extends EventSourceServlet {
         return path;
     }
 
-    public EventServlet(LeshanServer server, int securePort) {
+    public EventServlet(LeshanServer server, int securePort, JacksonRegistrationSerializer registrationSerializer) {
         server.getRegistrationService().addListener(this.registrationListener);
         server.getObservationService().addListener(this.observationListener);
         server.getPresenceService().addListener(this.presenceListener);
@@ -267,28 +333,280 @@ public class EventServlet extends EventSourceServlet {
             endpoint.addInterceptor(coapMessageTracer);
         }
 
-        ObjectMapper mapper = new ObjectMapper();
+        this.mapper = createMapper(new JsonFactory(), registrationSerializer);
+        this.cborMapper = createMapper(new CBORFactory(), registrationSerializer);
+
+        // keep idle connections alive through proxies and detect closed ones
+        scheduler.scheduleWithFixedDelay(() -> {
+            for (LeshanEventSource eventSource : getEventSources()) {
+                eventSource.heartbeat();
+            }
+        }, HEARTBEAT_PERIOD, HEARTBEAT_PERIOD, TimeUnit.SECONDS);
+    }
+
+    private static ObjectMapper createMapper(JsonFactory factory,
+        JacksonRegistrationSerializer registrationSerializer) {
+        ObjectMapper mapper = new ObjectMapper(factory);
         mapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
         SimpleModule module = new SimpleModule();
         module.addSerializer(Link.class, new JacksonLinkSerializer());
-        module.addSerializer(Registration.class, new JacksonRegistrationSerializer(server.getPresenceService()));
+        module.addSerializer(Registration.class, registrationSerializer);
         module.addSerializer(LwM2mNode.class, new JacksonLwM2mNodeSerializer());
         mapper.registerModule(module);
-        this.mapper = mapper;
+        return mapper;
     }
 
-    private synchronized void sendEvent(String event, String data, String endpoint) {
+    /**
+     * Queue the event for all matching subscribers. Never blocks : called from Californium threads.
+     * <p>
+     * The payload is only built if at least one subscriber matches, at most once, by the first writer which needs it,
+     * and the same frame is then shared by all subscribers.
+     *
+     * @param data supplies the object serialized as event payload.
+     */
+    private void sendEvent(String event, String endpoint, Supplier<?> data) {
+        sendEvent(event, endpoint, null, null, data);
+    }
+
+    /**
+     * @param conflationSubject events with same type, endpoint and subject (e.g. observed path) can be conflated by
+     *        subscribers which ask for it, <code>null</code> if this event must always be delivered.
+     * @param paths the LwM2M paths the event is about, used by path filters, <code>null</code> if not about paths.
+     */
+    private void sendEvent(String event, String endpoint, Object conflationSubject, Collection<LwM2mPath> paths,
+        Supplier<?> data) {
+        Set<LeshanEventSource> endpointSources = endpoint != null ? eventSourcesByEndpoint.get(endpoint) : null;
+        boolean matching = !allEndpointsSources.isEmpty() || (endpointSources != null && !endpointSources.isEmpty());
+        if (!matching && !isRecording()) {
+            // nobody can resume from before this point
+            lostAfter = lastEventId.get();
+            return;
+        }
         if (LOG.isDebugEnabled()) {
             LOG.debug("Dispatching {} event from endpoint {}", event, endpoint);
         }
 
-        for (LeshanEventSource eventSource : eventSources) {
-            if (eventSource.getEndpoint() == null || eventSource.getEndpoint().equals(endpoint)) {
-                eventSource.sentEvent(event, data);
+        ConflationKey conflationKey = conflationSubject == null ? null
+            : new ConflationKey(event, endpoint, conflationSubject);
+        LazyEvent lazyEvent = new LazyEvent(lastEventId.incrementAndGet(), event, endpoint, paths, conflationKey,
+            data);
+        replayBuffer.add(lazyEvent);
+        if (!matching) {
+            return;
+        }
+        for (LeshanEventSource eventSource : allEndpointsSources) {
+            eventSource.sentEvent(lazyEvent);
+        }
+        if (endpointSources != null) {
+            for (LeshanEventSource eventSource : endpointSources) {
+                eventSource.sentEvent(lazyEvent);
             }
         }
     }
 
+    /**
+     * Events are recorded while someone is subscribed, and for {@link #REPLAY_RETENTION} after the last subscriber
+     * left so it can resume after a network glitch or a page reload.
+     */
+    private boolean isRecording() {
+        if (!allEndpointsSources.isEmpty() || !eventSourcesByEndpoint.isEmpty()) {
+            return true;
+        }
+        long left = lastSubscriberLeft;
+        return left != 0 && System.currentTimeMillis() - left < REPLAY_RETENTION;
+    }
+
+    /**
+     * @return an event which is not dispatched nor recorded, for messages of the subscription protocol.
+     */
+    LazyEvent controlEvent(String type, Object data) {
+        return new LazyEvent(0, type, null, null, null, () -> data);
+    }
+
+    private void addEventSource(LeshanEventSource eventSource) {
+        String endpoint = eventSource.getEndpoint();
+        if (endpoint == null) {
+            synchronized (allEndpointsSources) {
+                // CoAP messages of all endpoints are only traced if someone explicitly asks for them
+                if (eventSource.requestsCoapLogs() && !requestsCoapLogs(allEndpointsSources)) {
+                    coapMessageTracer.setAllEndpointsListener(ClientCoapListener::new);
+                }
+                allEndpointsSources.add(eventSource);
+            }
+            return;
+        }
+        // per endpoint atomic : the CoAP listener can not be removed by a concurrent close
+        eventSourcesByEndpoint.compute(endpoint, (ep, sources) -> {
+            if (sources == null) {
+                sources = Collections.newSetFromMap(new ConcurrentHashMap<>());
+            }
+            // CoAP messages are only traced if someone wants them
+            if (eventSource.wantsCoapLogs() && !wantsCoapLogs(sources)) {
+                coapMessageTracer.addListener(ep, new ClientCoapListener(ep));
+            }
+            sources.add(eventSource);
+            return sources;
+        });
+    }
+
+    private void removeEventSource(LeshanEventSource eventSource) {
+        String endpoint = eventSource.getEndpoint();
+        if (endpoint == null) {
+            synchronized (allEndpointsSources) {
+                allEndpointsSources.remove(eventSource);
+                if (eventSource.requestsCoapLogs() && !requestsCoapLogs(allEndpointsSources)) {
+                    coapMessageTracer.setAllEndpointsListener(null);
+                }
+            }
+        } else {
+            eventSourcesByEndpoint.computeIfPresent(endpoint, (ep, sources) -> {
+                sources.remove(eventSource);
+                if (eventSource.wantsCoapLogs() && !wantsCoapLogs(sources)) {
+                    coapMessageTracer.removeListener(ep);
+                }
+                return sources.isEmpty() ? null : sources;
+            });
+        }
+        lastSubscriberLeft = System.currentTimeMillis();
+    }
+
+    private static boolean wantsCoapLogs(Set<LeshanEventSource> sources) {
+        for (LeshanEventSource source : sources) {
+            if (source.wantsCoapLogs()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean requestsCoapLogs(Set<LeshanEventSource> sources) {
+        for (LeshanEventSource source : sources) {
+            if (source.requestsCoapLogs()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private List<LeshanEventSource> getEventSources() {
+        List<LeshanEventSource> eventSources = new ArrayList<>(allEndpointsSources);
+        for (Set<LeshanEventSource> endpointSources : eventSourcesByEndpoint.values()) {
+            eventSources.addAll(endpointSources);
+        }
+        return eventSources;
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        // /api/event/stats : fan-out metrics
+        if ("/stats".equals(req.getPathInfo())) {
+            List<Map<String, Object>> subscribers = new ArrayList<>();
+            for (LeshanEventSource eventSource : getEventSources()) {
+                Map<String, Object> subscriber = new LinkedHashMap<>();
+                subscriber.put("endpoint", eventSource.getEndpoint());
+                subscriber.put("queued", eventSource.queued.get());
+                subscriber.put("dropped", eventSource.dropped.get());
+                subscriber.put("conflated", eventSource.conflated.get());
+                subscribers.add(subscriber);
+            }
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("dispatched", dispatchedEvents.get());
+            stats.put("dropped", droppedEvents.get());
+            stats.put("slowConsumersDisconnected", slowConsumers.get());
+            stats.put("conflated", conflatedEvents.get());
+            stats.put("replayed", replayedEvents.get());
+            stats.put("lastEventId", lastEventId.get());
+            stats.put("subscribers", subscribers);
+
+            resp.setContentType("application/json");
+            resp.getOutputStream().write(mapper.writeValueAsString(stats).getBytes(StandardCharsets.UTF_8));
+            resp.setStatus(HttpServletResponse.SC_OK);
+            return;
+        }
+
+        String accept = req.getHeader("Accept");
+        if (accept == null || !accept.contains("text/event-stream")) {
+            super.doGet(req, resp);
+            return;
+        }
+
+        EventFilter filter;
+        try {
+            filter = parseFilter(req.getParameter(QUERY_PARAM_TYPES), req.getParameter(QUERY_PARAM_PATHS));
+        } catch (IllegalArgumentException e) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid filter: " + e.getMessage());
+            return;
+        }
+
+        resp.setStatus(HttpServletResponse.SC_OK);
+        resp.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        resp.setContentType("text/event-stream");
+        // the stream is never reused for another request
+        resp.addHeader("Connection", "close");
+        resp.flushBuffer();
+
+        AsyncContext async = req.startAsync();
+        async.setTimeout(0);
+        SseSink sink = new SseSink(async, resp.getOutputStream());
+        async.addListener(sink);
+        sink.eventSource = subscribe(sink, req.getParameter(QUERY_PARAM_ENDPOINT), filter,
+            parseConflationWindow(req.getParameter(QUERY_PARAM_CONFLATE)), extractLastEventId(req));
+    }
+
+    /**
+     * Subscribe to the event stream, events are written to the sink by a writer task.
+     *
+     * @param endpoint only receive events of this endpoint, <code>null</code> for all endpoints.
+     * @param conflationWindow in ms, 0 to disable conflation.
+     * @param lastEventId first replay the events after this one, -1 for live events only.
+     */
+    LeshanEventSource subscribe(EventSink sink, String endpoint, EventFilter filter, long conflationWindow,
+        long lastEventId) {
+        LeshanEventSource eventSource = new LeshanEventSource(sink, endpoint, filter, conflationWindow);
+        eventSource.open(lastEventId);
+        return eventSource;
+    }
+
+    /**
+     * @throws IllegalArgumentException if a type is unknown or a path is invalid.
+     */
+    EventFilter parseFilter(String types, String paths) {
+        return EventFilter.parse(types, paths, EVENT_TYPES);
+    }
+
+    /**
+     * @return the conflation window in ms, 0 if conflation is not requested or invalid.
+     */
+    long parseConflationWindow(String conflate) {
+        if (conflate == null) {
+            return 0;
+        }
+        try {
+            long window = Durations.parseMillis(conflate);
+            return Math.max(MIN_CONFLATION_WINDOW, Math.min(MAX_CONFLATION_WINDOW, window));
+        } catch (NumberFormatException e) {
+            LOG.debug("Invalid conflation window {}, conflation disabled", conflate);
+            return 0;
+        }
+    }
+
+    /**
+     * @return the id of the last event dispatched so far.
+     */
+    long getLastEventId() {
+        return lastEventId.get();
+    }
+
+    @Override
+    public void destroy() {
+        writers.shutdownNow();
+        scheduler.shutdownNow();
+        for (LeshanEventSource eventSource : getEventSources()) {
+            eventSource.disconnect();
+        }
+        super.destroy();
+    }
+
     class ClientCoapListener implements CoapMessageListener {
 
         private final String endpoint;
@@ -299,63 +617,425 @@ public class EventServlet extends EventSourceServlet {
 
         @Override
         public void trace(CoapMessage message) {
-            try {
-                ObjectNode coapLog = EventServlet.this.mapper.valueToTree(message);
-                coapLog.put("ep", this.endpoint);
-                sendEvent(EVENT_COAP_LOG, EventServlet.this.mapper.writeValueAsString(coapLog), endpoint);
-            } catch (JsonProcessingException e) {
-                Log.warn(String.format("Error while processing json [%s] : [%s]", message.toString(), e.getMessage()));
-                sendEvent(EVENT_COAP_LOG, message.toString(), endpoint);
-            }
+            sendEvent(EVENT_COAP_LOG, endpoint, () -> {
+                try {
+                    ObjectNode coapLog = EventServlet.this.mapper.valueToTree(message);
+                    coapLog.put("ep", this.endpoint);
+                    return coapLog;
+                } catch (IllegalArgumentException e) {
+                    Log.warn(
+                        String.format("Error while processing json [%s] : [%s]", message.toString(), e.getMessage()));
+                    return message.toString();
+                }
+            });
         }
     }
 
-    private void cleanCoapListener(String endpoint) {
-        // remove the listener if there is no more eventSources for this endpoint
-        for (LeshanEventSource eventSource : eventSources) {
-            if (eventSource.getEndpoint() == null || eventSource.getEndpoint().equals(endpoint)) {
-                return;
-            }
+    /**
+     * @return the id of the last event received by the browser before it reconnected, -1 for a new subscription.
+     */
+    private long extractLastEventId(HttpServletRequest req) {
+        // the header is set by the browser on reconnection, the parameter allows to resume from a new EventSource
+        String lastEventId = req.getHeader(HEADER_LAST_EVENT_ID);
+        if (lastEventId == null) {
+            lastEventId = req.getParameter("lastEventId");
         }
-        coapMessageTracer.removeListener(endpoint);
+        return parseLastEventId(lastEventId);
     }
 
-    @Override
-    protected EventSource newEventSource(HttpServletRequest req) {
-        String endpoint = req.getParameter(QUERY_PARAM_ENDPOINT);
-        return new LeshanEventSource(endpoint);
+    /**
+     * @return the parsed id, -1 if absent, 0 (forcing a resync) if invalid.
+     */
+    static long parseLastEventId(String lastEventId) {
+        if (lastEventId == null || lastEventId.isEmpty()) {
+            return -1;
+        }
+        try {
+            return Math.max(0, Long.parseLong(lastEventId.trim()));
+        } catch (NumberFormatException e) {
+            LOG.debug("Invalid last event id {}, resync needed", lastEventId);
+            return 0;
+        }
     }
 
-    private class LeshanEventSource implements EventSource {
+    /**
+     * The transport of a subscriber. Only called by the subscriber writer task, so never concurrently for a given
+     * subscriber.
+     */
+    interface EventSink {
 
-        private final String endpoint;
-        private Emitter emitter;
+        /**
+         * @return <code>false</code> if nothing was written because the event has no payload.
+         */
+        boolean write(LazyEvent event) throws IOException;
 
-        public LeshanEventSource(String endpoint) {
-            this.endpoint = endpoint;
+        void writeHeartbeat() throws IOException;
+
+        void flush() throws IOException;
+
+        /**
+         * Close the underlying connection, called when the subscriber is disconnected by the server.
+         */
+        void close();
+    }
+
+    /**
+     * Server-Sent Events over the response of an async request.
+     */
+    private static class SseSink implements EventSink, AsyncListener {
+
+        private final AsyncContext async;
+        private final ServletOutputStream out;
+        private volatile LeshanEventSource eventSource;
+
+        SseSink(AsyncContext async, ServletOutputStream out) {
+            this.async = async;
+            this.out = out;
         }
 
         @Override
-        public void onOpen(Emitter emitter) {
-            this.emitter = emitter;
-            eventSources.add(this);
-            if (endpoint != null) {
-                coapMessageTracer.addListener(endpoint, new ClientCoapListener(endpoint));
+        public boolean write(LazyEvent event) throws IOException {
+            byte[] frame = event.getFrame();
+            if (frame == null) {
+                return false;
             }
+            out.write(frame);
+            return true;
         }
 
         @Override
-        public void onClose() {
-            cleanCoapListener(endpoint);
-            eventSources.remove(this);
+        public void writeHeartbeat() throws IOException {
+            out.write(HEARTBEAT);
         }
 
-        public void sentEvent(String event, String data) {
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() {
             try {
-                emitter.event(event, data);
+                async.complete();
+            } catch (IllegalStateException e) {
+                // already completed
+            }
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            closeEventSource();
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            closeEventSource();
+            close();
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            closeEventSource();
+            close();
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+
+        private void closeEventSource() {
+            LeshanEventSource eventSource = this.eventSource;
+            if (eventSource != null) {
+                eventSource.close();
+            }
+        }
+    }
+
+    /**
+     * A subscriber only receives the events matching its endpoint and {@link EventFilter}, other events are never
+     * serialized for it.
+     * <p>
+     * A subscriber owns a bounded queue of events, drained by its own writer task. When the queue is full new events
+     * are dropped, and a subscriber which keeps dropping events for {@link #SLOW_CONSUMER_GRACE_PERIOD} is
+     * disconnected (the browser reconnects on its own and resumes from its last event id).
+     * <p>
+     * With a conflation window, conflatable events (notifications, registration updates) are held until the end of the
+     * window and only the latest one by endpoint and path is delivered. Other events flush held events first so the
+     * order between them is kept.
+     */
+    class LeshanEventSource {
+
+        private final EventSink sink;
+        private final String endpoint;
+        private final EventFilter filter;
+        private final long conflationWindow;
+
+        // latest conflatable event by key, waiting for the end of the window
+        private final Map<ConflationKey, LazyEvent> conflating = new ConcurrentHashMap<>();
+        private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+        private final AtomicLong conflated = new AtomicLong();
+
+        private final Queue<LazyEvent> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger queued = new AtomicInteger();
+        // starts at 1 : live events are only queued until missed events are replayed by open()
+        private final AtomicInteger wip = new AtomicInteger(1);
+        private final AtomicLong dropped = new AtomicLong();
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+        private final AtomicBoolean heartbeat = new AtomicBoolean(false);
+        // time of the first drop since the queue was last emptied, 0 if not overflowing
+        private volatile long overflowingSince;
+
+        // only accessed by the writer : live events already sent by the replay
+        private long replayedUpTo;
+        private Set<Long> replayed;
+
+        LeshanEventSource(EventSink sink, String endpoint, EventFilter filter, long conflationWindow) {
+            this.sink = sink;
+            this.endpoint = endpoint;
+            this.filter = filter;
+            this.conflationWindow = conflationWindow;
+        }
+
+        /**
+         * Subscribe, then write the events missed since <code>lastEventId</code> before live ones.
+         */
+        private void open(long lastEventId) {
+            // subscribe first so no event falls between the replay and the live stream
+            addEventSource(this);
+
+            List<LazyEvent> missed = null;
+            if (lastEventId >= 0) {
+                long head = EventServlet.this.lastEventId.get();
+                missed = replayBuffer.since(lastEventId, head, lostAfter);
+                if (missed == null) {
+                    // some events are lost, the browser has to reload its state
+                    LOG.debug("Unable to resume event stream from {}, resync from {}", lastEventId, head);
+                    missed = Collections.singletonList(new LazyEvent(head, EVENT_RESYNC, null, null, null,
+                        () -> Collections.singletonMap("lastEventId", head)));
+                    replayedUpTo = head;
+                } else {
+                    replayed = new HashSet<>();
+                    for (Iterator<LazyEvent> it = missed.iterator(); it.hasNext();) {
+                        LazyEvent event = it.next();
+                        if (!accepts(event)) {
+                            it.remove();
+                            continue;
+                        }
+                        replayed.add(event.getId());
+                        replayedUpTo = Math.max(replayedUpTo, event.getId());
+                    }
+                    replayedEvents.addAndGet(missed.size());
+                }
+            }
+
+            List<LazyEvent> toReplay = missed;
+            try {
+                writers.execute(() -> {
+                    if (toReplay != null) {
+                        for (LazyEvent event : toReplay) {
+                            write(event);
+                        }
+                        flushOutput();
+                    }
+                    drain();
+                });
+            } catch (RejectedExecutionException e) {
+                // servlet destroyed
+                disconnect();
+            }
+        }
+
+        boolean accepts(LazyEvent event) {
+            return (endpoint == null || endpoint.equals(event.getEndpoint()))
+                && filter.accepts(event.getType(), event.getPaths());
+        }
+
+        boolean wantsCoapLogs() {
+            return filter.acceptsType(EVENT_COAP_LOG);
+        }
+
+        /**
+         * Unfiltered subscribers of all endpoints (e.g. the client list) do not make all endpoints traced, they only
+         * get CoAP logs of endpoints traced for their own subscribers.
+         */
+        boolean requestsCoapLogs() {
+            return filter.listsType(EVENT_COAP_LOG);
+        }
+
+        /**
+         * Stop receiving events, the connection is left open.
+         */
+        void close() {
+            if (closed.compareAndSet(false, true)) {
+                removeEventSource(this);
+                queue.clear();
+                conflating.clear();
+            }
+        }
+
+        void sentEvent(LazyEvent event) {
+            // endpoint already matched by the subscriber index
+            if (closed.get() || !filter.accepts(event.getType(), event.getPaths())) {
+                return;
+            }
+            if (conflationWindow > 0) {
+                if (event.getConflationKey() != null) {
+                    if (conflating.put(event.getConflationKey(), event) != null) {
+                        conflated.incrementAndGet();
+                        conflatedEvents.incrementAndGet();
+                    }
+                    scheduleFlush();
+                    return;
+                }
+                flush();
+            }
+            enqueue(event);
+        }
+
+        void heartbeat() {
+            heartbeat.set(true);
+            schedule();
+        }
+
+        private void scheduleFlush() {
+            if (flushScheduled.compareAndSet(false, true)) {
+                try {
+                    scheduler.schedule(() -> {
+                        flushScheduled.set(false);
+                        flush();
+                    }, conflationWindow, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    // servlet destroyed
+                    close();
+                }
+            }
+        }
+
+        private synchronized void flush() {
+            if (conflating.isEmpty()) {
+                return;
+            }
+            List<LazyEvent> held = new ArrayList<>(conflating.size());
+            for (ConflationKey key : conflating.keySet()) {
+                LazyEvent event = conflating.remove(key);
+                if (event != null) {
+                    held.add(event);
+                }
+            }
+            // ids must go up on the wire, or a resuming client would miss the events sent before a higher id
+            held.sort(Comparator.comparingLong(LazyEvent::getId));
+            for (LazyEvent event : held) {
+                enqueue(event);
+            }
+        }
+
+        private void enqueue(LazyEvent event) {
+            if (queued.incrementAndGet() > QUEUE_CAPACITY) {
+                queued.decrementAndGet();
+                onOverflow();
+                return;
+            }
+            queue.offer(event);
+            dispatchedEvents.incrementAndGet();
+            schedule();
+        }
+
+        private void onOverflow() {
+            dropped.incrementAndGet();
+            droppedEvents.incrementAndGet();
+            long now = System.currentTimeMillis();
+            long since = overflowingSince;
+            if (since == 0) {
+                overflowingSince = now;
+            } else if (now - since > SLOW_CONSUMER_GRACE_PERIOD) {
+                LOG.warn("Disconnecting slow event consumer (endpoint filter: {}, {} events dropped)", endpoint,
+                    dropped.get());
+                slowConsumers.incrementAndGet();
+                disconnect();
+            }
+        }
+
+        private void schedule() {
+            if (wip.getAndIncrement() == 0) {
+                try {
+                    writers.execute(this::drain);
+                } catch (RejectedExecutionException e) {
+                    // servlet destroyed
+                    close();
+                }
+            }
+        }
+
+        private void drain() {
+            int missed = 1;
+            do {
+                boolean written = false;
+                LazyEvent event;
+                while ((event = queue.poll()) != null) {
+                    queued.decrementAndGet();
+                    if (closed.get() || alreadyReplayed(event)) {
+                        continue;
+                    }
+                    written |= write(event);
+                }
+                if (heartbeat.getAndSet(false) && !written && !closed.get()) {
+                    try {
+                        sink.writeHeartbeat();
+                        written = true;
+                    } catch (IOException e) {
+                        LOG.debug("Unable to write heartbeat, closing subscriber", e);
+                        disconnect();
+                    }
+                }
+                if (written) {
+                    flushOutput();
+                }
+                overflowingSince = 0;
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private boolean alreadyReplayed(LazyEvent event) {
+            if (event.getId() > replayedUpTo) {
+                replayed = null;
+                return false;
+            }
+            // after a resync, all previous events are skipped
+            return replayed == null || replayed.contains(event.getId());
+        }
+
+        private boolean write(LazyEvent event) {
+            if (closed.get()) {
+                return false;
+            }
+            try {
+                return sink.write(event);
+            } catch (IOException e) {
+                LOG.debug("Unable to write event, closing subscriber", e);
+                disconnect();
+                return false;
+            }
+        }
+
+        private void flushOutput() {
+            if (closed.get()) {
+                return;
+            }
+            try {
+                sink.flush();
             } catch (IOException e) {
-                e.printStackTrace();
-                onClose();
+                LOG.debug("Unable to flush events, closing subscriber", e);
+                disconnect();
+            }
+        }
+
+        /**
+         * Stop receiving events and close the connection.
+         */
+        void disconnect() {
+            if (!closed.get()) {
+                close();
+                sink.close();
             }
         }
 
@@ -364,6 +1044,233 @@ public class EventServlet extends EventSourceServlet {
         }
     }
 
+    /**
+     * Fixed size ring of the most recent events, indexed by event id. Writers never block each other : an event only
+     * replaces an older one.
+     */
+    private static class ReplayBuffer {
+
+        private final AtomicReferenceArray<LazyEvent> events;
+        private final int mask;
+
+        ReplayBuffer(int size) {
+            this.events = new AtomicReferenceArray<>(size);
+            this.mask = size - 1;
+        }
+
+        void add(LazyEvent event) {
+            int index = (int) (event.getId() & mask);
+            while (true) {
+                LazyEvent previous = events.get(index);
+                if (previous != null && previous.getId() > event.getId()) {
+                    // a late writer, already overwritten by a newer event
+                    return;
+                }
+                if (events.compareAndSet(index, previous, event)) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * @return the events with an id in ]<code>lastEventId</code>, <code>head</code>] in id order, or
+         *         <code>null</code> if some of them are not available anymore.
+         */
+        List<LazyEvent> since(long lastEventId, long head, long lostAfter) {
+            if (lastEventId <= lostAfter || lastEventId > head || head - lastEventId > events.length()) {
+                return null;
+            }
+            List<LazyEvent> missed = new ArrayList<>((int) (head - lastEventId));
+            for (long id = lastEventId + 1; id <= head; id++) {
+                LazyEvent event = events.get((int) (id & mask));
+                if (event == null || event.getId() < id) {
+                    // not recorded yet, will come with live events
+                    continue;
+                }
+                if (event.getId() > id) {
+                    // overwritten while reading
+                    return null;
+                }
+                missed.add(event);
+            }
+            return missed;
+        }
+    }
+
+    /**
+     * An event whose payload and frames are computed on first access and then shared by all subscribers.
+     * <p>
+     * The JSON and CBOR forms are both serialized from the payload object, with the same serializers.
+     */
+    class LazyEvent {
+
+        private final long id;
+        private final String type;
+        private final String endpoint;
+        private final Collection<LwM2mPath> paths;
+        private final ConflationKey conflationKey;
+        // set to null once the payload is computed
+        private Supplier<?> supplier;
+        private Object payload;
+        private String data;
+        private byte[] frame;
+        private byte[] cborFrame;
+
+        LazyEvent(long id, String type, String endpoint, Collection<LwM2mPath> paths, ConflationKey conflationKey,
+            Supplier<?> supplier) {
+            this.id = id;
+            this.type = type;
+            this.endpoint = endpoint;
+            this.paths = paths;
+            this.conflationKey = conflationKey;
+            this.supplier = supplier;
+        }
+
+        long getId() {
+            return id;
+        }
+
+        String getType() {
+            return type;
+        }
+
+        String getEndpoint() {
+            return endpoint;
+        }
+
+        Collection<LwM2mPath> getPaths() {
+            return paths;
+        }
+
+        ConflationKey getConflationKey() {
+            return conflationKey;
+        }
+
+        /**
+         * @return the object to serialize, or <code>null</code> if it can not be computed.
+         */
+        private synchronized Object getPayload() {
+            if (supplier != null) {
+                try {
+                    payload = supplier.get();
+                } catch (RuntimeException e) {
+                    LOG.warn("Unable to build {} event", type, e);
+                } finally {
+                    supplier = null;
+                }
+            }
+            return payload;
+        }
+
+        /**
+         * @return the JSON payload, or <code>null</code> if it can not be computed.
+         */
+        synchronized String getData() {
+            if (data == null) {
+                Object payload = getPayload();
+                if (payload == null) {
+                    return null;
+                }
+                try {
+                    data = mapper.writeValueAsString(payload);
+                } catch (JsonProcessingException e) {
+                    LOG.warn("Unable to serialize {} event", type, e);
+                    // do not try again for each subscriber
+                    this.payload = null;
+                }
+            }
+            return data;
+        }
+
+        /**
+         * @return the UTF-8 encoded SSE frame, or <code>null</code> if the payload can not be computed.
+         */
+        synchronized byte[] getFrame() {
+            if (frame == null) {
+                String data = getData();
+                if (data == null) {
+                    return null;
+                }
+                StringBuilder sb = new StringBuilder(data.length() + type.length() + 32);
+                sb.append("id: ").append(id).append('\n');
+                sb.append("event: ").append(type).append('\n');
+                // each line of a multi-line payload needs its own field
+                int start = 0;
+                int end;
+                while ((end = data.indexOf('\n', start)) >= 0) {
+                    sb.append("data: ").append(data, start, end).append('\n');
+                    start = end + 1;
+                }
+                sb.append("data: ").append(data, start, data.length()).append("\n\n");
+                frame = sb.toString().getBytes(StandardCharsets.UTF_8);
+            }
+            return frame;
+        }
+
+        /**
+         * @return the CBOR encoded frame : a map with <code>id</code>, <code>type</code>, <code>ep</code> and
+         *         <code>data</code> entries, or <code>null</code> if the payload can not be computed.
+         */
+        synchronized byte[] getCborFrame() {
+            if (cborFrame == null) {
+                Object payload = getPayload();
+                if (payload == null) {
+                    return null;
+                }
+                ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+                try (JsonGenerator gen = cborMapper.getFactory().createGenerator(out)) {
+                    gen.writeStartObject();
+                    if (id > 0) {
+                        gen.writeNumberField("id", id);
+                    }
+                    gen.writeStringField("type", type);
+                    if (endpoint != null) {
+                        gen.writeStringField("ep", endpoint);
+                    }
+                    gen.writeFieldName("data");
+                    // serialized directly from the payload object, no JSON round trip
+                    cborMapper.writeValue(gen, payload);
+                    gen.writeEndObject();
+                } catch (IOException e) {
+                    LOG.warn("Unable to encode {} event", type, e);
+                    this.payload = null;
+                    return null;
+                }
+                cborFrame = out.toByteArray();
+            }
+            return cborFrame;
+        }
+    }
+
+    private static class ConflationKey {
+
+        private final String type;
+        private final String endpoint;
+        private final Object subject;
+
+        ConflationKey(String type, String endpoint, Object subject) {
+            this.type = type;
+            this.endpoint = endpoint;
+            this.subject = subject;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof ConflationKey))
+                return false;
+            ConflationKey other = (ConflationKey) o;
+            return type.equals(other.type) && Objects.equals(endpoint, other.endpoint)
+                && subject.equals(other.subject);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(type, endpoint, subject);
+        }
+    }
+
     @SuppressWarnings("unused")
     private class RegUpdate {
         public Registration registration;
@@ -0,0 +1,263 @@
+/*******************************************************************************
+ * Copyright (c) 2023 Sierra Wireless and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * <p>
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v20.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * <p>
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.demo.servlet;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import org.eclipse.jetty.websocket.api.BatchMode;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.eclipse.jetty.websocket.api.WebSocketListener;
+import org.eclipse.jetty.websocket.server.JettyWebSocketServlet;
+import org.eclipse.jetty.websocket.server.JettyWebSocketServletFactory;
+import org.eclipse.leshan.server.demo.servlet.EventServlet.EventSink;
+import org.eclipse.leshan.server.demo.servlet.EventServlet.LazyEvent;
+import org.eclipse.leshan.server.demo.servlet.EventServlet.LeshanEventSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * WebSocket access to the {@link EventServlet} event stream.
+ * <p>
+ * Events are sent as binary messages, each one a CBOR map with <code>id</code>, <code>type</code>, <code>ep</code>
+ * and <code>data</code> entries. The client drives its subscription with JSON text (or CBOR binary) messages, and can
+ * change it at any time without reconnecting :
+ *
+ * <pre>
+ * {"action":"subscribe", "ep":"myDevice", "types":["NOTIFICATION"], "paths":["/3/0"], "conflate":"1s"}
+ * {"action":"unsubscribe"}
+ * </pre>
+ *
+ * All subscribe fields are optional. <code>lastEventId</code> resumes the stream after this event. When a
+ * subscription is replaced, events dispatched in the meantime are replayed with the new filter so none is missed.
+ * Each message is acknowledged by a <code>SUBSCRIBED</code>, <code>UNSUBSCRIBED</code> or <code>ERROR</code>
+ * message.
+ */
+public class EventWebSocketServlet extends JettyWebSocketServlet {
+
+    private static final String ACTION_SUBSCRIBE = "subscribe";
+
+    private static final String ACTION_UNSUBSCRIBE = "unsubscribe";
+
+    private static final String MESSAGE_SUBSCRIBED = "SUBSCRIBED";
+
+    private static final String MESSAGE_UNSUBSCRIBED = "UNSUBSCRIBED";
+
+    private static final String MESSAGE_ERROR = "ERROR";
+
+    // subscription messages are tiny
+    private static final long MAX_MESSAGE_SIZE = 4096;
+
+    // a subscribed connection is kept alive by heartbeats
+    private static final Duration IDLE_TIMEOUT = Duration.ofMinutes(5);
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger LOG = LoggerFactory.getLogger(EventWebSocketServlet.class);
+
+    private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
+
+    private static final ObjectMapper CBOR_MAPPER = new ObjectMapper(new CBORFactory());
+
+    private final EventServlet eventServlet;
+
+    public EventWebSocketServlet(EventServlet eventServlet) {
+        this.eventServlet = eventServlet;
+    }
+
+    @Override
+    protected void configure(JettyWebSocketServletFactory factory) {
+        factory.setIdleTimeout(IDLE_TIMEOUT);
+        factory.setMaxTextMessageSize(MAX_MESSAGE_SIZE);
+        factory.setMaxBinaryMessageSize(MAX_MESSAGE_SIZE);
+        factory.setCreator((req, resp) -> new EventSocket());
+    }
+
+    private class EventSocket implements WebSocketListener, EventSink {
+
+        // sends from the subscriber writer and from the subscription handling must not interleave
+        private final Object sendLock = new Object();
+        private volatile Session session;
+        // guarded by this
+        private LeshanEventSource eventSource;
+
+        @Override
+        public void onWebSocketConnect(Session session) {
+            // events are batched until the subscriber flushes
+            session.getRemote().setBatchMode(BatchMode.ON);
+            this.session = session;
+        }
+
+        @Override
+        public void onWebSocketText(String message) {
+            try {
+                handle(JSON_MAPPER.readTree(message));
+            } catch (JsonProcessingException e) {
+                sendControl(MESSAGE_ERROR, "message", "invalid JSON message");
+            }
+        }
+
+        @Override
+        public void onWebSocketBinary(byte[] payload, int offset, int len) {
+            try {
+                handle(CBOR_MAPPER.readTree(payload, offset, len));
+            } catch (IOException e) {
+                sendControl(MESSAGE_ERROR, "message", "invalid CBOR message");
+            }
+        }
+
+        @Override
+        public void onWebSocketClose(int statusCode, String reason) {
+            unsubscribe();
+        }
+
+        @Override
+        public void onWebSocketError(Throwable cause) {
+            LOG.debug("Event websocket error", cause);
+            unsubscribe();
+        }
+
+        private void handle(JsonNode message) {
+            String action = text(message, "action");
+            if (ACTION_SUBSCRIBE.equals(action)) {
+                subscribe(message);
+            } else if (ACTION_UNSUBSCRIBE.equals(action)) {
+                unsubscribe();
+                sendControl(MESSAGE_UNSUBSCRIBED, null, null);
+            } else {
+                sendControl(MESSAGE_ERROR, "message", String.format("unknown action %s", action));
+            }
+        }
+
+        private synchronized void subscribe(JsonNode message) {
+            EventFilter filter;
+            try {
+                filter = eventServlet.parseFilter(list(message, "types"), list(message, "paths"));
+            } catch (IllegalArgumentException e) {
+                sendControl(MESSAGE_ERROR, "message", "Invalid filter: " + e.getMessage());
+                return;
+            }
+            String endpoint = text(message, "ep");
+            long conflationWindow = eventServlet.parseConflationWindow(text(message, "conflate"));
+            long lastEventId = EventServlet.parseLastEventId(text(message, "lastEventId"));
+
+            if (eventSource != null) {
+                if (lastEventId < 0) {
+                    // replay what is dispatched while switching, with the new filter
+                    lastEventId = eventServlet.getLastEventId();
+                }
+                eventSource.close();
+            }
+            sendControl(MESSAGE_SUBSCRIBED, "lastEventId", eventServlet.getLastEventId());
+            eventSource = eventServlet.subscribe(this, endpoint, filter, conflationWindow, lastEventId);
+        }
+
+        private synchronized void unsubscribe() {
+            if (eventSource != null) {
+                eventSource.close();
+                eventSource = null;
+            }
+        }
+
+        private void sendControl(String type, String key, Object value) {
+            Map<String, Object> data = new LinkedHashMap<>();
+            if (key != null) {
+                data.put(key, value);
+            }
+            try {
+                write(eventServlet.controlEvent(type, data));
+                flush();
+            } catch (IOException e) {
+                LOG.debug("Unable to send {} message", type, e);
+            }
+        }
+
+        @Override
+        public boolean write(LazyEvent event) throws IOException {
+            byte[] frame = event.getCborFrame();
+            Session session = this.session;
+            if (frame == null || session == null) {
+                return false;
+            }
+            synchronized (sendLock) {
+                session.getRemote().sendBytes(ByteBuffer.wrap(frame));
+            }
+            return true;
+        }
+
+        @Override
+        public void writeHeartbeat() throws IOException {
+            Session session = this.session;
+            if (session != null) {
+                synchronized (sendLock) {
+                    session.getRemote().sendPing(ByteBuffer.allocate(0));
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            Session session = this.session;
+            if (session != null) {
+                synchronized (sendLock) {
+                    session.getRemote().flush();
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            Session session = this.session;
+            if (session != null) {
+                session.close(StatusCode.SHUTDOWN, "event stream closed");
+            }
+        }
+    }
+
+    private static String text(JsonNode message, String field) {
+        JsonNode node = message.get(field);
+        return node == null || node.isNull() ? null : node.asText();
+    }
+
+    /**
+     * @return the values of an array field (or a comma separated string field) joined by commas.
+     */
+    private static String list(JsonNode message, String field) {
+        JsonNode node = message.get(field);
+        if (node == null || node.isNull()) {
+            return null;
+        }
+        if (!node.isArray()) {
+            return node.asText();
+        }
+        StringBuilder sb = new StringBuilder();
+        for (JsonNode value : node) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(value.asText());
+        }
+        return sb.toString();
+    }
+}
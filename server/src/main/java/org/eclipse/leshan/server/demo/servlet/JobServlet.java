@@ -0,0 +1,161 @@
+/*******************************************************************************
+ * Copyright (c) 2023 Sierra Wireless and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * <p>
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v20.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * <p>
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.demo.servlet;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.apache.commons.lang3.StringUtils;
+import org.eclipse.leshan.core.link.Link;
+import org.eclipse.leshan.core.node.LwM2mNode;
+import org.eclipse.leshan.core.response.LwM2mResponse;
+import org.eclipse.leshan.server.demo.request.DeferredJob;
+import org.eclipse.leshan.server.demo.request.DeferredJobListener;
+import org.eclipse.leshan.server.demo.request.DeferredRequestQueue;
+import org.eclipse.leshan.server.demo.servlet.json.JacksonDeferredJobSerializer;
+import org.eclipse.leshan.server.demo.servlet.json.JacksonLinkSerializer;
+import org.eclipse.leshan.server.demo.servlet.json.JacksonLwM2mNodeSerializer;
+import org.eclipse.leshan.server.demo.servlet.json.JacksonResponseSerializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Expose requests deferred for sleeping clients :
+ * <ul>
+ * <li><code>GET /api/jobs</code> : queue depth, globally and by endpoint.</li>
+ * <li><code>GET /api/jobs/{id}</code> : state and result of a job.</li>
+ * <li><code>DELETE /api/jobs/{id}</code> : cancel a pending job.</li>
+ * </ul>
+ * Jobs created with a callback URL get their result POSTed to this URL once finished.
+ */
+public class JobServlet extends HttpServlet {
+
+    private static final Logger LOG = LoggerFactory.getLogger(JobServlet.class);
+
+    private static final long serialVersionUID = 1L;
+
+    private final DeferredRequestQueue queue;
+    private final ObjectMapper mapper;
+    private final HttpClient httpClient;
+
+    private final DeferredJobListener callbackNotifier = new DeferredJobListener() {
+
+        @Override
+        public void completed(DeferredJob job) {
+            if (job.getCallbackUrl() == null) {
+                return;
+            }
+            try {
+                HttpRequest request = HttpRequest.newBuilder(URI.create(job.getCallbackUrl()))
+                    .timeout(Duration.ofSeconds(10))
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(mapper.writeValueAsBytes(job)))
+                    .build();
+                httpClient.sendAsync(request, HttpResponse.BodyHandlers.discarding()).whenComplete((r, e) -> {
+                    if (e != null) {
+                        LOG.warn("Unable to notify job {} result to {}", job.getId(), job.getCallbackUrl(), e);
+                    }
+                });
+            } catch (JsonProcessingException | IllegalArgumentException e) {
+                LOG.warn("Unable to notify job {} result to {}", job.getId(), job.getCallbackUrl(), e);
+            }
+        }
+    };
+
+    public JobServlet(DeferredRequestQueue queue) {
+        this.queue = queue;
+        this.httpClient = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+
+        mapper = new ObjectMapper();
+        mapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
+        SimpleModule module = new SimpleModule();
+        module.addSerializer(Link.class, new JacksonLinkSerializer());
+        module.addSerializer(LwM2mResponse.class, new JacksonResponseSerializer());
+        module.addSerializer(LwM2mNode.class, new JacksonLwM2mNodeSerializer());
+        module.addSerializer(DeferredJob.class, new JacksonDeferredJobSerializer());
+        mapper.registerModule(module);
+
+        queue.addListener(callbackNotifier);
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        String[] path = StringUtils.split(req.getPathInfo(), '/');
+
+        // queue metrics
+        if (path == null || path.length == 0) {
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("pending", queue.getPendingCount());
+            stats.put("endpoints", queue.getQueueDepths());
+            writeJson(resp, stats);
+            return;
+        }
+
+        if (path.length != 1) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid path");
+            return;
+        }
+        DeferredJob job = queue.getJob(path[0]);
+        if (job == null) {
+            resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            resp.getWriter().format("no job with id '%s'", path[0]).flush();
+            return;
+        }
+        writeJson(resp, job);
+    }
+
+    @Override
+    protected void doDelete(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        String[] path = StringUtils.split(req.getPathInfo(), '/');
+        if (path == null || path.length != 1) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid path");
+            return;
+        }
+        if (queue.cancel(path[0])) {
+            resp.setStatus(HttpServletResponse.SC_OK);
+        } else {
+            resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            resp.getWriter().format("no pending job with id '%s'", path[0]).flush();
+        }
+    }
+
+    @Override
+    public void destroy() {
+        // the queue sweeper is stopped with the web server
+        queue.destroy();
+        super.destroy();
+    }
+
+    private void writeJson(HttpServletResponse resp, Object value) throws IOException {
+        resp.setContentType("application/json");
+        resp.getOutputStream().write(mapper.writeValueAsString(value).getBytes(StandardCharsets.UTF_8));
+        resp.setStatus(HttpServletResponse.SC_OK);
+    }
+}
@@ -22,23 +22,49 @@ import jakarta.servlet.http.HttpServletResponse;
 import org.apache.commons.lang3.StringUtils;
 import org.eclipse.leshan.core.model.LwM2mModel;
 import org.eclipse.leshan.core.model.ObjectModel;
+import org.eclipse.leshan.core.util.Hex;
 import org.eclipse.leshan.core.util.json.JsonException;
 import org.eclipse.leshan.server.demo.model.ObjectModelSerDes;
 import org.eclipse.leshan.server.model.LwM2mModelProvider;
 import org.eclipse.leshan.server.registration.Registration;
 import org.eclipse.leshan.server.registration.RegistrationService;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.zip.GZIPOutputStream;
 
+/**
+ * Object models of a client : <code>GET /api/objectspecs/{endpoint}</code>.
+ * <p>
+ * Devices of a same product line share the same model set, so serialized models are cached by model set fingerprint
+ * (the object versions of the registration), the least recently used being evicted first. Their gzip form is computed
+ * on first use. Responses have a strong ETag and a request with a matching <code>If-None-Match</code> gets a 304.
+ * This expects the model provider to only depend on the supported objects of the registration, as
+ * {@link org.eclipse.leshan.server.model.VersionedModelProvider} does.
+ */
 public class ObjectSpecServlet extends HttpServlet {
 
+    // fingerprints come from devices : do not let them grow the cache without limit
+    private static final int MAX_CACHED_MODEL_SETS = 256;
+
     private static final long serialVersionUID = 1L;
 
     private final ObjectModelSerDes serializer;
 
     private final LwM2mModelProvider modelProvider;
     private final RegistrationService registrationService;
+    // model set fingerprint => serialized models, by access order, guarded by itself
+    private final Map<String, Payload> payloads = new LinkedHashMap<String, Payload>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Payload> eldest) {
+            return size() > MAX_CACHED_MODEL_SETS;
+        }
+    };
 
     public ObjectSpecServlet(LwM2mModelProvider modelProvider, RegistrationService registrationService) {
         // use the provider from the server and return a model by client
@@ -67,19 +93,140 @@ public class ObjectSpecServlet extends HttpServlet {
         if (registration == null) {
             resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
             resp.getWriter().format("no registered client with id '%s'", clientEndpoint).flush();
+            return;
         }
 
         // Get Model for this registration
+        Payload payload;
         try {
-            LwM2mModel model = modelProvider.getObjectModel(registration);
-            resp.setContentType("application/json");
-            List<ObjectModel> objectModels = new ArrayList<>(model.getObjectModels());
-            objectModels.sort((o1, o2) -> Integer.compare(o1.id, o2.id));
-
-            resp.getOutputStream().write(serializer.bSerialize(objectModels));
-            resp.setStatus(HttpServletResponse.SC_OK);
+            payload = getPayload(registration);
         } catch (JsonException e) {
             throw new ServletException(e);
         }
+
+        boolean gzip = acceptsGzip(req);
+        String etag = gzip ? payload.gzipEtag : payload.etag;
+        resp.setHeader("ETag", etag);
+        // let browsers revalidate each time, the 304 spares the payload
+        resp.setHeader("Cache-Control", "no-cache");
+        resp.setHeader("Vary", "Accept-Encoding");
+        if (matches(req.getHeader("If-None-Match"), etag)) {
+            resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        byte[] content = gzip ? payload.getGzipped() : payload.json;
+        resp.setContentType("application/json");
+        if (gzip) {
+            resp.setHeader("Content-Encoding", "gzip");
+        }
+        resp.setContentLength(content.length);
+        resp.getOutputStream().write(content);
+        resp.setStatus(HttpServletResponse.SC_OK);
+    }
+
+    private Payload getPayload(Registration registration) throws JsonException {
+        String fingerprint = fingerprint(registration);
+        synchronized (payloads) {
+            Payload payload = payloads.get(fingerprint);
+            if (payload != null) {
+                return payload;
+            }
+        }
+        // serialized out of the lock : concurrent requests for a new model set may serialize it twice
+        LwM2mModel model = modelProvider.getObjectModel(registration);
+        List<ObjectModel> objectModels = new ArrayList<>(model.getObjectModels());
+        objectModels.sort((o1, o2) -> Integer.compare(o1.id, o2.id));
+        Payload payload = new Payload(serializer.bSerialize(objectModels));
+        synchronized (payloads) {
+            Payload existing = payloads.putIfAbsent(fingerprint, payload);
+            return existing != null ? existing : payload;
+        }
+    }
+
+    /**
+     * @return the supported objects of the registration with their versions, sorted by object id.
+     */
+    private static String fingerprint(Registration registration) {
+        Map<Integer, ?> supportedObjects = registration.getSupportedObject();
+        if (supportedObjects == null) {
+            return "";
+        }
+        StringBuilder fingerprint = new StringBuilder();
+        for (Map.Entry<Integer, ?> supportedObject : new TreeMap<>(supportedObjects).entrySet()) {
+            fingerprint.append(supportedObject.getKey()).append(':').append(supportedObject.getValue()).append(',');
+        }
+        return fingerprint.toString();
+    }
+
+    private static boolean acceptsGzip(HttpServletRequest req) {
+        for (Enumeration<String> values = req.getHeaders("Accept-Encoding"); values.hasMoreElements();) {
+            for (String coding : values.nextElement().split(",")) {
+                String[] parts = coding.trim().split(";");
+                if ("gzip".equalsIgnoreCase(parts[0].trim())) {
+                    return parts.length == 1 || !parts[1].trim().matches("q\\s*=\\s*0(\\.0*)?");
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the <code>If-None-Match</code> header matches this ETag (weak comparison, as required).
+     */
+    private static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if ("*".equals(candidate) || etag.equals(candidate)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static class Payload {
+        private final byte[] json;
+        private final String etag;
+        private final String gzipEtag;
+        // only computed if a client accepts it
+        private volatile byte[] gzipped;
+
+        Payload(byte[] json) {
+            this.json = json;
+            String digest = digest(json);
+            // each encoding is a distinct representation, with its own strong ETag
+            this.etag = "\"" + digest + "\"";
+            this.gzipEtag = "\"" + digest + "-gzip\"";
+        }
+
+        byte[] getGzipped() throws IOException {
+            byte[] gzipped = this.gzipped;
+            if (gzipped == null) {
+                // the same bytes if computed twice concurrently
+                ByteArrayOutputStream out = new ByteArrayOutputStream(json.length / 4);
+                try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+                    gzip.write(json);
+                }
+                gzipped = out.toByteArray();
+                this.gzipped = gzipped;
+            }
+            return gzipped;
+        }
+
+        private static String digest(byte[] content) {
+            try {
+                byte[] hash = MessageDigest.getInstance("SHA-256").digest(content);
+                return new String(Hex.encodeHex(Arrays.copyOf(hash, 16)));
+            } catch (NoSuchAlgorithmException e) {
+                // SHA-256 is available on all platforms
+                throw new IllegalStateException(e);
+            }
+        }
     }
 }
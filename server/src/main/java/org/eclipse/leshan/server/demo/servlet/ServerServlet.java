@@ -30,6 +30,9 @@ import org.apache.commons.lang3.StringUtils;
 import org.eclipse.leshan.server.californium.LeshanServer;
 import org.eclipse.leshan.server.core.demo.json.PublicKeySerDes;
 import org.eclipse.leshan.server.core.demo.json.X509CertificateSerDes;
+import org.eclipse.leshan.server.demo.model.CachingModelProvider;
+import org.eclipse.leshan.server.demo.registration.RegistrationIndex;
+import org.eclipse.leshan.server.demo.request.RequestCoalescer;
 
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
@@ -42,11 +45,16 @@ public class ServerServlet extends HttpServlet {
     private final PublicKeySerDes publicKeySerDes;
 
     private final LeshanServer server;
+    private final RegistrationIndex registrationIndex;
+    private final RequestCoalescer coalescer;
     private final PublicKey publicKey;
     private final X509Certificate serverCertificate;
 
-    public ServerServlet(LeshanServer server, X509Certificate serverCertificate) {
+    public ServerServlet(LeshanServer server, RegistrationIndex registrationIndex, RequestCoalescer coalescer,
+            X509Certificate serverCertificate) {
         this.server = server;
+        this.registrationIndex = registrationIndex;
+        this.coalescer = coalescer;
         certificateSerDes = new X509CertificateSerDes();
         publicKeySerDes = new PublicKeySerDes();
 
@@ -54,8 +62,11 @@ public class ServerServlet extends HttpServlet {
         this.serverCertificate = serverCertificate;
     }
 
-    public ServerServlet(LeshanServer server, PublicKey serverPublicKey) {
+    public ServerServlet(LeshanServer server, RegistrationIndex registrationIndex, RequestCoalescer coalescer,
+            PublicKey serverPublicKey) {
         this.server = server;
+        this.registrationIndex = registrationIndex;
+        this.coalescer = coalescer;
         certificateSerDes = new X509CertificateSerDes();
         publicKeySerDes = new PublicKeySerDes();
         this.publicKey = serverPublicKey;
@@ -95,6 +106,19 @@ public class ServerServlet extends HttpServlet {
             return;
         }
 
+        if ("stats".equals(path[0])) {
+            ObjectNode stats = JsonNodeFactory.instance.objectNode();
+            stats.put("registrations", registrationIndex.size());
+            stats.put("coalescedRequests", coalescer.getCoalescedCount());
+            if (server.getModelProvider() instanceof CachingModelProvider) {
+                stats.put("models", ((CachingModelProvider) server.getModelProvider()).getModelCount());
+            }
+            resp.setContentType("application/json");
+            resp.getOutputStream().write(stats.toString().getBytes(StandardCharsets.UTF_8));
+            resp.setStatus(HttpServletResponse.SC_OK);
+            return;
+        }
+
         resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
     }
 }
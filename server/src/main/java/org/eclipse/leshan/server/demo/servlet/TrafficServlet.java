@@ -0,0 +1,100 @@
+/*******************************************************************************
+ * Copyright (c) 2023 Sierra Wireless and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * <p>
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v20.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * <p>
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.demo.servlet;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.eclipse.leshan.server.demo.stats.TrafficStats;
+import org.eclipse.leshan.server.demo.stats.TrafficStats.EndpointTraffic;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+
+/**
+ * Endpoints with the most traffic : <code>GET /api/traffic?sort=messagesIn&amp;top=10</code>.
+ * <p>
+ * <code>sort</code> is one of the {@link EndpointTraffic} counters (<code>messagesIn</code> by default),
+ * <code>top</code> the number of endpoints to return (10 by default). Counters of a single endpoint are available at
+ * <code>/api/clients/{endpoint}/stats</code>.
+ */
+public class TrafficServlet extends HttpServlet {
+
+    private static final int DEFAULT_TOP = 10;
+
+    private static final int MAX_TOP = 1000;
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Map<String, ToLongFunction<EndpointTraffic>> COUNTERS = new LinkedHashMap<>();
+    static {
+        COUNTERS.put("messagesIn", EndpointTraffic::getMessagesIn);
+        COUNTERS.put("messagesOut", EndpointTraffic::getMessagesOut);
+        COUNTERS.put("bytesIn", EndpointTraffic::getBytesIn);
+        COUNTERS.put("bytesOut", EndpointTraffic::getBytesOut);
+        COUNTERS.put("retransmissions", EndpointTraffic::getRetransmissions);
+        COUNTERS.put("resets", EndpointTraffic::getResets);
+        COUNTERS.put("errors", EndpointTraffic::getErrorCount);
+        COUNTERS.put("lastSeen", EndpointTraffic::getLastSeen);
+    }
+
+    private final TrafficStats trafficStats;
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    public TrafficServlet(TrafficStats trafficStats) {
+        this.trafficStats = trafficStats;
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        if (req.getPathInfo() != null && !"/".equals(req.getPathInfo())) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        String sort = req.getParameter("sort") == null ? "messagesIn" : req.getParameter("sort");
+        ToLongFunction<EndpointTraffic> counter = COUNTERS.get(sort);
+        if (counter == null) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                    "Invalid sort: " + sort + " is not one of " + COUNTERS.keySet());
+            return;
+        }
+        int top;
+        try {
+            top = req.getParameter("top") == null ? DEFAULT_TOP : Integer.parseInt(req.getParameter("top"));
+        } catch (NumberFormatException e) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid top: " + e.getMessage());
+            return;
+        }
+        if (top < 1 || top > MAX_TOP) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid top: must be between 1 and " + MAX_TOP);
+            return;
+        }
+
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("sort", sort);
+        body.put("endpoints", trafficStats.size());
+        body.put("top", trafficStats.top(top, counter));
+
+        resp.setContentType("application/json");
+        resp.getOutputStream().write(mapper.writeValueAsString(body).getBytes(StandardCharsets.UTF_8));
+        resp.setStatus(HttpServletResponse.SC_OK);
+    }
+}
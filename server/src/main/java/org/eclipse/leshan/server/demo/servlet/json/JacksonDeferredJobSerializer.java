@@ -0,0 +1,62 @@
+/*******************************************************************************
+ * Copyright (c) 2023 Sierra Wireless and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * <p>
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v20.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * <p>
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.demo.servlet.json;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.eclipse.leshan.server.demo.request.DeferredJob;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+
+public class JacksonDeferredJobSerializer extends StdSerializer<DeferredJob> {
+
+    private static final long serialVersionUID = 1L;
+
+    protected JacksonDeferredJobSerializer(Class<DeferredJob> t) {
+        super(t);
+    }
+
+    public JacksonDeferredJobSerializer() {
+        this(null);
+    }
+
+    @Override
+    public void serialize(DeferredJob src, JsonGenerator gen, SerializerProvider provider) throws IOException {
+        Map<String, Object> map = new LinkedHashMap<>();
+
+        map.put("id", src.getId());
+        map.put("endpoint", src.getEndpoint());
+        map.put("request", src.getRequest().getClass().getSimpleName());
+        map.put("state", src.getState().toString());
+        map.put("creationTime", src.getCreationTime());
+        map.put("expirationTime", src.getExpirationTime());
+        if (src.getState().isFinal()) {
+            map.put("completionTime", src.getCompletionTime());
+        }
+        if (src.getResponse() != null) {
+            map.put("response", src.getResponse());
+        }
+        if (src.getError() != null) {
+            map.put("error", src.getError());
+        }
+
+        gen.writeObject(map);
+    }
+}
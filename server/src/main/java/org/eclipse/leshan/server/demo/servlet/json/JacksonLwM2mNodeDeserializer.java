@@ -17,10 +17,10 @@
 package org.eclipse.leshan.server.demo.servlet.json;
 
 import java.io.IOException;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 import org.eclipse.leshan.core.link.LinkParseException;
@@ -41,106 +41,199 @@ import org.eclipse.leshan.core.util.datatype.ULong;
 
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonParser.NumberType;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.DeserializationContext;
 import com.fasterxml.jackson.databind.JsonDeserializer;
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.JsonNodeType;
+import com.fasterxml.jackson.databind.node.TextNode;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
 
+/**
+ * Streaming LwM2mNode deserializer.
+ * <p>
+ * Nodes are built while reading tokens : instances and resources are read recursively from the same parser, and
+ * values are decoded as soon as the resource type is known. Only a value which comes before the <code>type</code>
+ * field is buffered, and only object links and values which are not in the advised JSON form (e.g. numbers instead
+ * of strings) are read into a tree to be checked.
+ */
 public class JacksonLwM2mNodeDeserializer extends JsonDeserializer<LwM2mNode> {
 
     private final LinkParser linkparser = new DefaultLwM2mLinkParser();
 
     @Override
     public LwM2mNode deserialize(JsonParser p, DeserializationContext ctxt) throws IOException {
+        if (p.currentToken() != JsonToken.START_OBJECT) {
+            throw new JsonParseException(p, "Invalid node element");
+        }
 
-        ObjectMapper om = (ObjectMapper) p.getCodec();
-        om.setConfig(ctxt.getConfig());
-
-        JsonNode object = p.getCodec().readTree(p);
-
-        LwM2mNode node = null;
-
-        if (object.isObject()) {
-
-            Integer id = null;
-            if (object.has("id")) {
-                id = object.get("id").asInt();
-            }
-
-            String kind = null;
-            if (object.has("kind")) {
-                kind = object.get("kind").asText();
-            }
-
-            if ("obj".equals(kind) || object.has("instances")) {
-                if (id == null) {
-                    throw new JsonParseException(p, "Missing id");
-                }
-
-                JsonNode array = object.get("instances");
-                LwM2mObjectInstance[] instances = new LwM2mObjectInstance[object.get("instances").size()];
+        Integer id = null;
+        String kind = null;
+        Type type = null;
+        List<LwM2mObjectInstance> instances = null;
+        List<LwM2mResource> resources = null;
+        Map<Integer, Object> values = null;
+        boolean hasValue = false;
+        Object value = null;
+        // values read before the type
+        TokenBuffer bufferedValues = null;
+        TokenBuffer bufferedValue = null;
+        boolean invalidValues = false;
 
-                for (int i = 0; i < array.size(); i++) {
-                    instances[i] = (LwM2mObjectInstance) om.treeToValue(array.get(i), LwM2mNode.class);
+        for (String field = p.nextFieldName(); field != null; field = p.nextFieldName()) {
+            JsonToken token = p.nextToken();
+            switch (field) {
+            case "id":
+                id = p.getValueAsInt();
+                break;
+            case "kind":
+                kind = p.getValueAsString();
+                break;
+            case "type":
+                type = Type.valueOf(p.getValueAsString("").toUpperCase());
+                break;
+            case "instances":
+                instances = new ArrayList<>();
+                if (token == JsonToken.START_ARRAY) {
+                    while (p.nextToken() != JsonToken.END_ARRAY) {
+                        instances.add((LwM2mObjectInstance) deserialize(p, ctxt));
+                    }
+                } else {
+                    throw new JsonParseException(p, "Instances element is not an array");
                 }
-                node = new LwM2mObject(id, instances);
-
-            } else if ("instance".equals(kind) || object.has("resources")) {
-                JsonNode array = object.get("resources");
-                LwM2mResource[] resources = new LwM2mResource[array.size()];
-
-                for (int i = 0; i < array.size(); i++) {
-                    resources[i] = (LwM2mResource) om.treeToValue(array.get(i), LwM2mNode.class);
+                break;
+            case "resources":
+                resources = new ArrayList<>();
+                if (token == JsonToken.START_ARRAY) {
+                    while (p.nextToken() != JsonToken.END_ARRAY) {
+                        resources.add((LwM2mResource) deserialize(p, ctxt));
+                    }
+                } else {
+                    throw new JsonParseException(p, "Resources element is not an array");
                 }
-                if (id == null) {
-                    node = new LwM2mObjectInstance(Arrays.asList(resources));
+                break;
+            case "values":
+                values = new HashMap<>();
+                if (token != JsonToken.START_OBJECT) {
+                    invalidValues = true;
+                    p.skipChildren();
+                } else if (type != null) {
+                    readValues(p, ctxt, type, values);
                 } else {
-                    node = new LwM2mObjectInstance(id, resources);
+                    bufferedValues = ctxt.bufferAsCopyOfValue(p);
                 }
-            } else if ("multiResource".equals(kind) || object.has("values")) {
-                if (id == null) {
-                    throw new JsonParseException(p, "Missing id");
+                break;
+            case "value":
+                hasValue = true;
+                if (type != null) {
+                    value = deserializeValue(p, ctxt, type);
+                } else {
+                    bufferedValue = ctxt.bufferAsCopyOfValue(p);
                 }
-                // multi-instances resource
-                Map<Integer, Object> values = new HashMap<>();
-                Type type = Type.valueOf(object.get("type").asText().toUpperCase());
+                break;
+            default:
+                p.skipChildren();
+                break;
+            }
+        }
 
-                JsonNode valuesNode = object.get("values");
-                if (!valuesNode.isObject()) {
-                    throw new JsonParseException(p, "Values element is not an object");
-                }
+        if ("obj".equals(kind) || instances != null) {
+            if (id == null) {
+                throw new JsonParseException(p, "Missing id");
+            }
+            if (instances == null) {
+                throw new JsonParseException(p, "Missing instances");
+            }
+            return new LwM2mObject(id, instances.toArray(new LwM2mObjectInstance[instances.size()]));
 
-                for (Iterator<String> it = valuesNode.fieldNames(); it.hasNext();) {
-                    String nodeName = it.next();
-                    JsonNode nodeValue = valuesNode.get(nodeName);
-                    values.put(Integer.valueOf(nodeName), deserializeValue(nodeValue, type));
+        } else if ("instance".equals(kind) || resources != null) {
+            if (resources == null) {
+                throw new JsonParseException(p, "Missing resources");
+            }
+            if (id == null) {
+                return new LwM2mObjectInstance(resources);
+            } else {
+                return new LwM2mObjectInstance(id, resources.toArray(new LwM2mResource[resources.size()]));
+            }
+        } else if ("multiResource".equals(kind) || values != null) {
+            if (id == null) {
+                throw new JsonParseException(p, "Missing id");
+            }
+            // multi-instances resource
+            if (values == null || invalidValues) {
+                throw new JsonParseException(p, "Values element is not an object");
+            }
+            if (type == null) {
+                throw new JsonParseException(p, "Missing type");
+            }
+            if (bufferedValues != null) {
+                try (JsonParser vp = bufferedValues.asParserOnFirstToken()) {
+                    readValues(vp, ctxt, type, values);
                 }
-                node = LwM2mMultipleResource.newResource(id, values, type);
-            } else if (object.has("value")) {
-                if (id == null) {
-                    throw new JsonParseException(p, "Missing id");
+            }
+            return LwM2mMultipleResource.newResource(id, values, type);
+        } else if (hasValue) {
+            if (id == null) {
+                throw new JsonParseException(p, "Missing id");
+            }
+            if (type == null) {
+                throw new JsonParseException(p, "Missing type");
+            }
+            if (bufferedValue != null) {
+                try (JsonParser vp = bufferedValue.asParserOnFirstToken()) {
+                    value = deserializeValue(vp, ctxt, type);
                 }
+            }
 
-                if ("resourceInstance".equals(kind)) {
-                    // resource instance
-                    JsonNode val = object.get("value");
-                    Type type = Type.valueOf(object.get("type").asText().toUpperCase());
-                    node = LwM2mResourceInstance.newInstance(id, deserializeValue(val, type), type);
-                } else {
-                    // single value resource
-                    JsonNode val = object.get("value");
-                    Type type = Type.valueOf(object.get("type").asText().toUpperCase());
-                    node = LwM2mSingleResource.newResource(id, deserializeValue(val, type), type);
-                }
+            if ("resourceInstance".equals(kind)) {
+                // resource instance
+                return LwM2mResourceInstance.newInstance(id, value, type);
             } else {
-                throw new JsonParseException(p, "Invalid node element");
+                // single value resource
+                return LwM2mSingleResource.newResource(id, value, type);
             }
         } else {
             throw new JsonParseException(p, "Invalid node element");
         }
+    }
+
+    /**
+     * Reads the values of a multiple resource, the parser being on the start of the values object.
+     */
+    private void readValues(JsonParser p, DeserializationContext ctxt, Type type, Map<Integer, Object> values)
+            throws IOException {
+        for (String instanceId = p.nextFieldName(); instanceId != null; instanceId = p.nextFieldName()) {
+            p.nextToken();
+            values.put(Integer.valueOf(instanceId), deserializeValue(p, ctxt, type));
+        }
+    }
 
-        return node;
+    /**
+     * Decodes the value the parser is on, leaving the parser on its last token.
+     */
+    private Object deserializeValue(JsonParser p, DeserializationContext ctxt, ResourceModel.Type type)
+            throws IOException {
+        switch (p.currentToken()) {
+        case VALUE_STRING:
+            // the advised form of all types but boolean, time and object link
+            return deserializeValue(TextNode.valueOf(p.getText()), type);
+        case VALUE_TRUE:
+        case VALUE_FALSE:
+            if (type == Type.BOOLEAN) {
+                return p.getBooleanValue();
+            }
+            break;
+        case VALUE_NUMBER_INT:
+            if (type == Type.TIME && p.getNumberType() != NumberType.BIG_INTEGER) {
+                return new Date(p.getLongValue());
+            }
+            break;
+        default:
+            break;
+        }
+        // object links, tolerated numbers and invalid values : check the value tree
+        return deserializeValue(ctxt.readTree(p), type);
     }
 
     private Object deserializeValue(JsonNode val, ResourceModel.Type type) {
@@ -17,9 +17,8 @@
 package org.eclipse.leshan.server.demo.servlet.json;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Arrays;
+import java.util.Collection;
 
 import org.eclipse.leshan.core.link.DefaultLinkSerializer;
 import org.eclipse.leshan.core.link.Link;
@@ -50,62 +49,150 @@ public class JacksonLwM2mNodeSerializer extends StdSerializer<LwM2mNode> {
         this(null);
     }
 
+    /**
+     * Writes the node fields straight to the generator.
+     * <p>
+     * Fields are written in the iteration order of the <code>HashMap</code> this serializer used to build, so the
+     * output does not change : <code>instances, kind, id</code> for an object, <code>kind, resources, id</code> for
+     * an instance, <code>kind, values, id, type</code> for a multiple resource and <code>kind, id, type, value</code>
+     * for a single resource or a resource instance.
+     */
     @Override
     public void serialize(LwM2mNode src, JsonGenerator gen, SerializerProvider provider) throws IOException {
-        Map<String, Object> element = new HashMap<>();
-
-        element.put("id", src.getId());
-
+        gen.writeStartObject();
         if (src instanceof LwM2mObject) {
-            element.put("kind", "obj");
-            element.put("instances", ((LwM2mObject) src).getInstances().values());
+            gen.writeFieldName("instances");
+            gen.writeStartArray();
+            for (LwM2mObjectInstance instance : ((LwM2mObject) src).getInstances().values()) {
+                serialize(instance, gen, provider);
+            }
+            gen.writeEndArray();
+            gen.writeStringField("kind", "obj");
+            gen.writeNumberField("id", src.getId());
         } else if (src instanceof LwM2mObjectInstance) {
-            element.put("kind", "instance");
-            element.put("resources", ((LwM2mObjectInstance) src).getResources().values());
+            gen.writeStringField("kind", "instance");
+            gen.writeFieldName("resources");
+            gen.writeStartArray();
+            for (LwM2mResource resource : ((LwM2mObjectInstance) src).getResources().values()) {
+                serialize(resource, gen, provider);
+            }
+            gen.writeEndArray();
+            gen.writeNumberField("id", src.getId());
         } else if (src instanceof LwM2mResource) {
             LwM2mResource rsc = (LwM2mResource) src;
             if (rsc.isMultiInstances()) {
-                Map<String, Object> values = new HashMap<>();
-                for (Entry<Integer, LwM2mResourceInstance> entry : rsc.getInstances().entrySet()) {
-                    values.put(entry.getKey().toString(), convertValue(rsc.getType(), entry.getValue().getValue()));
-                }
-                element.put("kind", "multiResource");
-                element.put("values", values);
-                element.put("type", rsc.getType());
+                gen.writeStringField("kind", "multiResource");
+                gen.writeFieldName("values");
+                writeInstanceValues(rsc, gen, provider);
+                gen.writeNumberField("id", src.getId());
+                writeType(rsc.getType(), gen);
             } else {
-                element.put("kind", "singleResource");
-                element.put("type", rsc.getType());
-                element.put("value", convertValue(rsc.getType(), rsc.getValue()));
+                gen.writeStringField("kind", "singleResource");
+                gen.writeNumberField("id", src.getId());
+                writeType(rsc.getType(), gen);
+                gen.writeFieldName("value");
+                writeValue(rsc.getType(), rsc.getValue(), gen, provider);
             }
         } else if (src instanceof LwM2mResourceInstance) {
-            element.put("kind", "resourceInstance");
             LwM2mResourceInstance rsc = (LwM2mResourceInstance) src;
-            element.put("type", rsc.getType());
-            element.put("value", convertValue(rsc.getType(), rsc.getValue()));
+            gen.writeStringField("kind", "resourceInstance");
+            gen.writeNumberField("id", src.getId());
+            writeType(rsc.getType(), gen);
+            gen.writeFieldName("value");
+            writeValue(rsc.getType(), rsc.getValue(), gen, provider);
+        } else {
+            gen.writeNumberField("id", src.getId());
+        }
+        gen.writeEndObject();
+    }
+
+    /**
+     * Writes the values of a multiple resource as an object keyed by instance id, in <code>HashMap</code> order : by
+     * bucket of the id string hash in a table sized for the number of instances, then by insertion order.
+     */
+    private void writeInstanceValues(LwM2mResource rsc, JsonGenerator gen, SerializerProvider provider)
+            throws IOException {
+        Collection<LwM2mResourceInstance> instances = rsc.getInstances().values();
+        int size = instances.size();
+        int capacity = 16;
+        while (size > capacity * 3 / 4) {
+            capacity <<= 1;
+        }
+        LwM2mResourceInstance[] byIndex = instances.toArray(new LwM2mResourceInstance[size]);
+        long[] order = new long[size];
+        for (int i = 0; i < size; i++) {
+            int hash = stringHash(byIndex[i].getId());
+            long bucket = (hash ^ (hash >>> 16)) & (capacity - 1);
+            order[i] = bucket << 32 | i;
+        }
+        Arrays.sort(order);
 
+        gen.writeStartObject();
+        for (long entry : order) {
+            LwM2mResourceInstance instance = byIndex[(int) entry];
+            gen.writeFieldName(Integer.toString(instance.getId()));
+            writeValue(rsc.getType(), instance.getValue(), gen, provider);
         }
+        gen.writeEndObject();
+    }
 
-        gen.writeObject(element);
+    /**
+     * @return the hash code of the decimal string of this id, without creating the string.
+     */
+    private static int stringHash(int id) {
+        if (id < 0) {
+            return Integer.toString(id).hashCode();
+        }
+        int divisor = 1;
+        while (id / divisor >= 10) {
+            divisor *= 10;
+        }
+        int hash = 0;
+        for (; divisor > 0; divisor /= 10) {
+            hash = 31 * hash + ('0' + id / divisor % 10);
+        }
+        return hash;
     }
 
-    private Object convertValue(Type type, Object value) {
+    private static void writeType(Type type, JsonGenerator gen) throws IOException {
+        if (type == null) {
+            gen.writeNullField("type");
+        } else {
+            gen.writeStringField("type", type.name());
+        }
+    }
+
+    private void writeValue(Type type, Object value, JsonGenerator gen, SerializerProvider provider)
+            throws IOException {
         switch (type) {
         case OPAQUE:
-            return new String(Hex.encodeHex((byte[]) value));
+            char[] hex = Hex.encodeHex((byte[]) value);
+            gen.writeString(hex, 0, hex.length);
+            break;
         case INTEGER:
         case UNSIGNED_INTEGER:
             // we use String for INTEGER and UNSIGNED INTEGER because
             // Javascript number does not support safely number larger than Number.MAX_SAFE_INTEGER (2^53 - 1)
             // without usage of BigInt...
-            return value.toString();
+            gen.writeString(value.toString());
+            break;
         case FLOAT:
             // We use String to be consistent with INTEGER but to be sure to not get any restriction from javascript
             // world.
-            return value.toString();
+            gen.writeString(value.toString());
+            break;
         case CORELINK:
-            return linkSerializer.serializeCoreLinkFormat((Link[]) value);
+            gen.writeString(linkSerializer.serializeCoreLinkFormat((Link[]) value));
+            break;
         default:
-            return value;
+            if (value instanceof String) {
+                gen.writeString((String) value);
+            } else if (value instanceof Boolean) {
+                gen.writeBoolean((Boolean) value);
+            } else {
+                // dates and object links are written as configured on the mapper
+                provider.defaultSerializeValue(value, gen);
+            }
         }
     }
 }
@@ -17,39 +17,137 @@
 package org.eclipse.leshan.server.demo.servlet.json;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.eclipse.leshan.core.node.LwM2mPath;
+import org.eclipse.leshan.core.observation.Observation;
 import org.eclipse.leshan.core.request.BindingMode;
+import org.eclipse.leshan.server.demo.request.CircuitBreaker;
 import org.eclipse.leshan.server.queue.PresenceService;
 import org.eclipse.leshan.server.registration.Registration;
+import org.eclipse.leshan.server.registration.RegistrationListener;
+import org.eclipse.leshan.server.registration.RegistrationService;
+import org.eclipse.leshan.server.registration.RegistrationUpdate;
 
 import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.ObjectCodec;
+import com.fasterxml.jackson.core.json.JsonGeneratorImpl;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializerProvider;
 import com.fasterxml.jackson.databind.ser.std.StdSerializer;
 
+/**
+ * Registration serializer.
+ * <p>
+ * When created with a {@link RegistrationService}, the JSON of the fields which only change with the registration
+ * itself is cached by registration id and update time, and spliced with the volatile fields (<code>sleeping</code>,
+ * <code>circuitBreaker</code>) into the output. Cached JSON is dropped when the registration is updated or removed.
+ */
 public class JacksonRegistrationSerializer extends StdSerializer<Registration> {
 
     private static final long serialVersionUID = -2828961931685566265L;
 
     private final PresenceService presenceService;
+    private final CircuitBreaker circuitBreaker;
+    // registration id => JSON of stable fields
+    private final transient Map<String, CachedJson> cache;
+    private final transient RegistrationService registrationService;
 
-    protected JacksonRegistrationSerializer(Class<Registration> t, PresenceService presenceService) {
+    protected JacksonRegistrationSerializer(Class<Registration> t, PresenceService presenceService,
+            CircuitBreaker circuitBreaker) {
         super(t);
         this.presenceService = presenceService;
+        this.circuitBreaker = circuitBreaker;
+        this.cache = null;
+        this.registrationService = null;
+    }
+
+    public JacksonRegistrationSerializer(PresenceService presenceService, CircuitBreaker circuitBreaker,
+            RegistrationService registrationService) {
+        super((Class<Registration>) null);
+        this.presenceService = presenceService;
+        this.circuitBreaker = circuitBreaker;
+        this.cache = new ConcurrentHashMap<>();
+        this.registrationService = registrationService;
+        registrationService.addListener(new RegistrationListener() {
+
+            @Override
+            public void registered(Registration registration, Registration previousReg,
+                    Collection<Observation> previousObservations) {
+                if (previousReg != null) {
+                    cache.remove(previousReg.getId());
+                }
+            }
+
+            @Override
+            public void updated(RegistrationUpdate update, Registration updatedRegistration,
+                    Registration previousRegistration) {
+                // keep JSON already cached for the new state
+                long lastUpdate = updatedRegistration.getLastUpdate().getTime();
+                cache.computeIfPresent(previousRegistration.getId(),
+                        (id, cached) -> cached.lastUpdate == lastUpdate ? cached : null);
+            }
+
+            @Override
+            public void unregistered(Registration registration, Collection<Observation> observations,
+                    boolean expired, Registration newReg) {
+                cache.remove(registration.getId());
+            }
+        });
     }
 
     public JacksonRegistrationSerializer(PresenceService presenceService) {
-        this(null, presenceService);
+        this(null, presenceService, null);
+    }
+
+    public JacksonRegistrationSerializer(PresenceService presenceService, CircuitBreaker circuitBreaker) {
+        this(null, presenceService, circuitBreaker);
     }
 
     @Override
     public void serialize(Registration src, JsonGenerator gen, SerializerProvider provider) throws IOException {
+        ObjectCodec codec = gen.getCodec();
+        // raw JSON can only be spliced into a compact JSON output
+        if (cache == null || !(gen instanceof JsonGeneratorImpl) || gen.getPrettyPrinter() != null
+                || !(codec instanceof ObjectMapper)) {
+            Map<String, Object> map = stableFields(src);
+            putVolatileFields(src, map);
+            gen.writeObject(map);
+            return;
+        }
+
+        long lastUpdate = src.getLastUpdate().getTime();
+        CachedJson cached = cache.get(src.getId());
+        if (cached == null || cached.lastUpdate != lastUpdate) {
+            String stable = ((ObjectMapper) codec).writeValueAsString(stableFields(src));
+            // keep the object open to append volatile fields
+            cached = new CachedJson(lastUpdate, stable.substring(0, stable.length() - 1));
+            cache.put(src.getId(), cached);
+            // checked after the put : a registration removed meanwhile is forgotten either here or by the listener
+            if (registrationService.getById(src.getId()) == null) {
+                cache.remove(src.getId(), cached);
+            }
+        }
+
+        StringBuilder json = new StringBuilder(cached.prefix.length() + 48).append(cached.prefix);
+        // same volatile fields as putVolatileFields(), values need no escaping
+        if (src.usesQueueMode()) {
+            json.append(",\"sleeping\":").append(!presenceService.isClientAwake(src));
+        }
+        if (circuitBreaker != null) {
+            json.append(",\"circuitBreaker\":\"").append(circuitBreaker.getState(src.getEndpoint())).append('"');
+        }
+        gen.writeRawValue(json.append('}').toString());
+    }
+
+    private Map<String, Object> stableFields(Registration src) {
         Map<String, Object> map = new LinkedHashMap<>();
 
         map.put("endpoint", src.getEndpoint());
@@ -71,11 +169,16 @@ public class JacksonRegistrationSerializer extends StdSerializer<Registration> {
         map.put("additionalRegistrationAttributes", src.getAdditionalRegistrationAttributes());
         map.put("queuemode", src.usesQueueMode());
         map.put("availableInstances", serializeAvailableInstances(src.getAvailableInstances()));
+        return map;
+    }
 
+    private void putVolatileFields(Registration src, Map<String, Object> map) {
         if (src.usesQueueMode()) {
             map.put("sleeping", !presenceService.isClientAwake(src));
         }
-        gen.writeObject(map);
+        if (circuitBreaker != null) {
+            map.put("circuitBreaker", circuitBreaker.getState(src.getEndpoint()).toString());
+        }
     }
 
     private Map<Integer, Set<Integer>> serializeAvailableInstances(Set<LwM2mPath> instances) {
@@ -92,4 +195,15 @@ public class JacksonRegistrationSerializer extends StdSerializer<Registration> {
         }
         return result;
     }
+
+    private static class CachedJson {
+        private final long lastUpdate;
+        // serialized object without its closing brace
+        private final String prefix;
+
+        CachedJson(long lastUpdate, String prefix) {
+            this.lastUpdate = lastUpdate;
+            this.prefix = prefix;
+        }
+    }
 }
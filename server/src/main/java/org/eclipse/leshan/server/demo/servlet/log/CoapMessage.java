@@ -25,90 +25,133 @@ import java.util.Map.Entry;
 import org.apache.commons.lang3.StringUtils;
 import org.eclipse.californium.core.coap.CoAP.Type;
 import org.eclipse.californium.core.coap.EmptyMessage;
+import org.eclipse.californium.core.coap.Message;
 import org.eclipse.californium.core.coap.Option;
 import org.eclipse.californium.core.coap.OptionNumberRegistry;
 import org.eclipse.californium.core.coap.OptionSet;
 import org.eclipse.californium.core.coap.Request;
 import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.coap.Token;
 import org.eclipse.leshan.core.util.Hex;
 
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+
+/**
+ * A traced CoAP message. Creating it only copies the message fields, they are formatted (options, hex payload) by the
+ * getters, so out of the Californium threads and only if it is actually serialized.
+ */
+@JsonPropertyOrder({ "timestamp", "incoming", "type", "code", "mId", "token", "options", "payload" })
 public class CoapMessage {
 
-    public long timestamp;
+    private final long timestamp;
 
     // true for received message and false for sent messages
-    public boolean incoming;
+    private final boolean incoming;
 
-    // Confirmable, Non-confirmable, Acknowledgment, Reset
-    public String type;
+    private final Type type;
 
-    // Request method or Response code
-    public String code;
+    private final int mId;
 
-    public int mId;
+    private final Token token;
 
-    public String token;
+    // a copy : Californium keeps on using the options of the message
+    private final OptionSet options;
 
-    public String options;
+    private final byte[] payload;
 
-    public String payload;
+    // Request method or Response code, null for empty messages
+    private final Object code;
 
     public CoapMessage(Request request, boolean incoming) {
-        this(incoming, request.getType(), request.getMID(), request.getTokenString(), request.getOptions(),
-                request.getPayload());
-        this.code = request.getCode().toString();
+        this(incoming, request, request.getCode());
     }
 
     public CoapMessage(Response request, boolean incoming) {
-        this(incoming, request.getType(), request.getMID(), request.getTokenString(), request.getOptions(),
-                request.getPayload());
-        this.code = request.getCode().toString();
+        this(incoming, request, request.getCode());
     }
 
     public CoapMessage(EmptyMessage request, boolean incoming) {
-        this(incoming, request.getType(), request.getMID(), request.getTokenString(), request.getOptions(),
-                request.getPayload());
+        this(incoming, request, null);
     }
 
-    private CoapMessage(boolean incoming, Type type, int mId, String token, OptionSet options, byte[] payload) {
-        this.incoming = incoming;
+    private CoapMessage(boolean incoming, Message message, Object code) {
         this.timestamp = System.currentTimeMillis();
-        this.type = type.toString();
-        this.mId = mId;
-        this.token = token;
-
-        if (options != null) {
-            List<Option> opts = options.asSortedList();
-            if (!opts.isEmpty()) {
-                Map<String, List<String>> optMap = new HashMap<>();
-                for (Option opt : opts) {
-                    String strOption = OptionNumberRegistry.toString(opt.getNumber());
-                    List<String> values = optMap.get(strOption);
-                    if (values == null) {
-                        values = new ArrayList<>();
-                        optMap.put(strOption, values);
-                    }
-                    values.add(opt.toValueString());
-                }
-
-                StringBuilder builder = new StringBuilder();
-                for (Entry<String, List<String>> e : optMap.entrySet()) {
-                    if (builder.length() > 0) {
-                        builder.append(" - ");
-                    }
-                    builder.append(e.getKey()).append(": ").append(StringUtils.join(e.getValue(), ", "));
-                }
-                this.options = builder.toString();
+        this.incoming = incoming;
+        this.type = message.getType();
+        this.mId = message.getMID();
+        this.token = message.getToken();
+        this.options = message.getOptions() == null ? null : new OptionSet(message.getOptions());
+        this.payload = message.getPayload();
+        this.code = code;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public boolean isIncoming() {
+        return incoming;
+    }
+
+    /**
+     * @return Confirmable, Non-confirmable, Acknowledgment or Reset.
+     */
+    public String getType() {
+        return type == null ? null : type.toString();
+    }
+
+    public String getCode() {
+        return code == null ? null : code.toString();
+    }
 
+    @JsonProperty("mId")
+    public int getMId() {
+        return mId;
+    }
+
+    public String getToken() {
+        return token == null ? "null" : token.getAsString();
+    }
+
+    public String getOptions() {
+        if (options == null) {
+            return null;
+        }
+        List<Option> opts = options.asSortedList();
+        if (opts.isEmpty()) {
+            return null;
+        }
+        Map<String, List<String>> optMap = new HashMap<>();
+        for (Option opt : opts) {
+            String strOption = OptionNumberRegistry.toString(opt.getNumber());
+            List<String> values = optMap.get(strOption);
+            if (values == null) {
+                values = new ArrayList<>();
+                optMap.put(strOption, values);
             }
+            values.add(opt.toValueString());
         }
-        if (payload != null && payload.length > 0) {
-            String strPayload = new String(payload, StandardCharsets.UTF_8);
-            if (StringUtils.isAsciiPrintable(strPayload)) {
-                this.payload = strPayload;
-            } else {
-                this.payload = "Hex:" + Hex.encodeHexString(payload);
+
+        StringBuilder builder = new StringBuilder();
+        for (Entry<String, List<String>> e : optMap.entrySet()) {
+            if (builder.length() > 0) {
+                builder.append(" - ");
             }
+            builder.append(e.getKey()).append(": ").append(StringUtils.join(e.getValue(), ", "));
+        }
+        return builder.toString();
+    }
+
+    public String getPayload() {
+        if (payload == null || payload.length == 0) {
+            return null;
+        }
+        String strPayload = new String(payload, StandardCharsets.UTF_8);
+        if (StringUtils.isAsciiPrintable(strPayload)) {
+            return strPayload;
+        } else {
+            return "Hex:" + Hex.encodeHexString(payload);
         }
     }
 }
@@ -16,47 +16,128 @@
 package org.eclipse.leshan.server.demo.servlet.log;
 
 import java.net.InetSocketAddress;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 
 import org.eclipse.californium.core.coap.EmptyMessage;
 import org.eclipse.californium.core.coap.Request;
 import org.eclipse.californium.core.coap.Response;
 import org.eclipse.californium.core.network.interceptors.MessageInterceptor;
+import org.eclipse.leshan.core.observation.Observation;
 import org.eclipse.leshan.server.registration.Registration;
+import org.eclipse.leshan.server.registration.RegistrationListener;
 import org.eclipse.leshan.server.registration.RegistrationService;
+import org.eclipse.leshan.server.registration.RegistrationUpdate;
 
+/**
+ * Trace CoAP messages exchanged with the peers of some endpoints, or of all registered endpoints.
+ * <p>
+ * Installed on every CoAP endpoint, so made to cost nothing while nobody listens : a single volatile read. Otherwise
+ * it is a lookup by peer address, and the {@link CoapMessage} is only formatted if a listener actually uses it.
+ */
 public class CoapMessageTracer implements MessageInterceptor {
 
-    private final Map<String, CoapMessageListener> listeners = new ConcurrentHashMap<>();
+    private final Map<InetSocketAddress, CoapMessageListener> listeners = new ConcurrentHashMap<>();
+
+    // endpoint of each peer, to trace all endpoints
+    private final Map<InetSocketAddress, String> endpointsByAddress = new ConcurrentHashMap<>();
+
+    // creates the listener of an endpoint when all endpoints are traced, null otherwise
+    private volatile Function<String, CoapMessageListener> allEndpointsListener;
+
+    // fast path : false while there is no listener
+    private volatile boolean tracing;
 
     private final RegistrationService registry;
 
-    public void addListener(String endpoint, CoapMessageListener listener) {
+    private final RegistrationListener registrationListener = new RegistrationListener() {
+
+        @Override
+        public void registered(Registration registration, Registration previousReg,
+                Collection<Observation> previousObservations) {
+            if (previousReg != null) {
+                endpointsByAddress.remove(previousReg.getIdentity().getPeerAddress(), previousReg.getEndpoint());
+            }
+            endpointsByAddress.put(registration.getIdentity().getPeerAddress(), registration.getEndpoint());
+        }
+
+        @Override
+        public void updated(RegistrationUpdate update, Registration updatedRegistration,
+                Registration previousRegistration) {
+            endpointsByAddress.remove(previousRegistration.getIdentity().getPeerAddress(),
+                    previousRegistration.getEndpoint());
+            endpointsByAddress.put(updatedRegistration.getIdentity().getPeerAddress(),
+                    updatedRegistration.getEndpoint());
+        }
+
+        @Override
+        public void unregistered(Registration registration, Collection<Observation> observations, boolean expired,
+                Registration newReg) {
+            endpointsByAddress.remove(registration.getIdentity().getPeerAddress(), registration.getEndpoint());
+        }
+    };
+
+    public CoapMessageTracer(RegistrationService registry) {
+        this.registry = registry;
+        registry.addListener(registrationListener);
+        for (Iterator<Registration> it = registry.getAllRegistrations(); it.hasNext();) {
+            Registration registration = it.next();
+            endpointsByAddress.putIfAbsent(registration.getIdentity().getPeerAddress(), registration.getEndpoint());
+        }
+    }
+
+    public synchronized void addListener(String endpoint, CoapMessageListener listener) {
         Registration registration = registry.getByEndpoint(endpoint);
         if (registration != null) {
-            listeners.put(toStringAddress(registration.getIdentity().getPeerAddress()), listener);
+            listeners.put(registration.getIdentity().getPeerAddress(), listener);
+            tracing = true;
         }
     }
 
-    public void removeListener(String endpoint) {
+    public synchronized void removeListener(String endpoint) {
         Registration registration = registry.getByEndpoint(endpoint);
         if (registration != null) {
-            listeners.remove(toStringAddress(registration.getIdentity().getPeerAddress()));
+            listeners.remove(registration.getIdentity().getPeerAddress());
+            updateTracing();
         }
     }
 
-    private String toStringAddress(InetSocketAddress clientAddress) {
-        return clientAddress.getAddress() + ":" + clientAddress.getPort();
+    /**
+     * Trace the messages of all registered endpoints : endpoints without their own listener get the one created by
+     * this function, <code>null</code> to stop.
+     */
+    public synchronized void setAllEndpointsListener(Function<String, CoapMessageListener> allEndpointsListener) {
+        this.allEndpointsListener = allEndpointsListener;
+        updateTracing();
     }
 
-    public CoapMessageTracer(RegistrationService registry) {
-        this.registry = registry;
+    private void updateTracing() {
+        tracing = !listeners.isEmpty() || allEndpointsListener != null;
+    }
+
+    private CoapMessageListener listenerOf(InetSocketAddress address) {
+        CoapMessageListener listener = listeners.get(address);
+        if (listener == null) {
+            Function<String, CoapMessageListener> allEndpointsListener = this.allEndpointsListener;
+            if (allEndpointsListener != null) {
+                String endpoint = endpointsByAddress.get(address);
+                if (endpoint != null) {
+                    listener = allEndpointsListener.apply(endpoint);
+                }
+            }
+        }
+        return listener;
     }
 
     @Override
     public void sendRequest(Request request) {
-        CoapMessageListener listener = listeners.get(toStringAddress(request.getDestinationContext().getPeerAddress()));
+        if (!tracing) {
+            return;
+        }
+        CoapMessageListener listener = listenerOf(request.getDestinationContext().getPeerAddress());
         if (listener != null) {
             listener.trace(new CoapMessage(request, false));
         }
@@ -64,8 +145,10 @@ public class CoapMessageTracer implements MessageInterceptor {
 
     @Override
     public void sendResponse(Response response) {
-        CoapMessageListener listener = listeners
-                .get(toStringAddress(response.getDestinationContext().getPeerAddress()));
+        if (!tracing) {
+            return;
+        }
+        CoapMessageListener listener = listenerOf(response.getDestinationContext().getPeerAddress());
         if (listener != null) {
             listener.trace(new CoapMessage(response, false));
         }
@@ -73,7 +156,10 @@ public class CoapMessageTracer implements MessageInterceptor {
 
     @Override
     public void sendEmptyMessage(EmptyMessage message) {
-        CoapMessageListener listener = listeners.get(toStringAddress(message.getDestinationContext().getPeerAddress()));
+        if (!tracing) {
+            return;
+        }
+        CoapMessageListener listener = listenerOf(message.getDestinationContext().getPeerAddress());
         if (listener != null) {
             listener.trace(new CoapMessage(message, false));
         }
@@ -81,29 +167,34 @@ public class CoapMessageTracer implements MessageInterceptor {
 
     @Override
     public void receiveRequest(Request request) {
-        CoapMessageListener listener = listeners.get(toStringAddress(request.getSourceContext().getPeerAddress()));
+        if (!tracing) {
+            return;
+        }
+        CoapMessageListener listener = listenerOf(request.getSourceContext().getPeerAddress());
         if (listener != null) {
             listener.trace(new CoapMessage(request, true));
         }
-
     }
 
     @Override
     public void receiveResponse(Response response) {
-        CoapMessageListener listener = listeners.get(toStringAddress(response.getSourceContext().getPeerAddress()));
+        if (!tracing) {
+            return;
+        }
+        CoapMessageListener listener = listenerOf(response.getSourceContext().getPeerAddress());
         if (listener != null) {
             listener.trace(new CoapMessage(response, true));
         }
-
     }
 
     @Override
     public void receiveEmptyMessage(EmptyMessage message) {
-        CoapMessageListener listener = listeners.get(toStringAddress(message.getSourceContext().getPeerAddress()));
+        if (!tracing) {
+            return;
+        }
+        CoapMessageListener listener = listenerOf(message.getSourceContext().getPeerAddress());
         if (listener != null) {
             listener.trace(new CoapMessage(message, true));
         }
-
     }
-
 }
@@ -0,0 +1,328 @@
+/*******************************************************************************
+ * Copyright (c) 2023 Sierra Wireless and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * <p>
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v20.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * <p>
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.demo.stats;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.CoAP.Type;
+import org.eclipse.californium.core.coap.EmptyMessage;
+import org.eclipse.californium.core.coap.Message;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.interceptors.MessageInterceptor;
+import org.eclipse.leshan.core.observation.Observation;
+import org.eclipse.leshan.server.registration.Registration;
+import org.eclipse.leshan.server.registration.RegistrationListener;
+import org.eclipse.leshan.server.registration.RegistrationService;
+import org.eclipse.leshan.server.registration.RegistrationUpdate;
+
+/**
+ * Per endpoint CoAP traffic counters : messages and bytes in each direction, retransmissions, resets, error response
+ * codes and the time the device was last heard from.
+ * <p>
+ * To be added as a post-process interceptor, so sent messages are serialized and received duplicates are flagged.
+ * Counters are {@link LongAdder}s : Californium threads never contend on them. Messages of peers which are not
+ * registered are not counted, and counters of an endpoint are dropped when it deregisters.
+ */
+public class TrafficStats implements MessageInterceptor {
+
+    private final Map<InetSocketAddress, String> endpointsByAddress = new ConcurrentHashMap<>();
+    private final Map<String, EndpointTraffic> trafficByEndpoint = new ConcurrentHashMap<>();
+
+    private final RegistrationListener registrationListener = new RegistrationListener() {
+
+        @Override
+        public void registered(Registration registration, Registration previousReg,
+                Collection<Observation> previousObservations) {
+            if (previousReg != null) {
+                endpointsByAddress.remove(previousReg.getIdentity().getPeerAddress(), previousReg.getEndpoint());
+            }
+            endpointsByAddress.put(registration.getIdentity().getPeerAddress(), registration.getEndpoint());
+        }
+
+        @Override
+        public void updated(RegistrationUpdate update, Registration updatedRegistration,
+                Registration previousRegistration) {
+            endpointsByAddress.remove(previousRegistration.getIdentity().getPeerAddress(),
+                    previousRegistration.getEndpoint());
+            endpointsByAddress.put(updatedRegistration.getIdentity().getPeerAddress(),
+                    updatedRegistration.getEndpoint());
+        }
+
+        @Override
+        public void unregistered(Registration registration, Collection<Observation> observations, boolean expired,
+                Registration newReg) {
+            endpointsByAddress.remove(registration.getIdentity().getPeerAddress(), registration.getEndpoint());
+            if (newReg == null) {
+                trafficByEndpoint.remove(registration.getEndpoint());
+            }
+        }
+    };
+
+    public TrafficStats(RegistrationService registrationService) {
+        registrationService.addListener(registrationListener);
+        for (Iterator<Registration> it = registrationService.getAllRegistrations(); it.hasNext();) {
+            Registration registration = it.next();
+            endpointsByAddress.putIfAbsent(registration.getIdentity().getPeerAddress(), registration.getEndpoint());
+        }
+    }
+
+    /**
+     * @return the counters of this endpoint, <code>null</code> if no traffic was seen since it registered.
+     */
+    public EndpointTraffic get(String endpoint) {
+        return trafficByEndpoint.get(endpoint);
+    }
+
+    /**
+     * @return the <code>n</code> endpoints with the highest value of the given counter, highest first.
+     */
+    public List<EndpointTraffic> top(int n, ToLongFunction<EndpointTraffic> counter) {
+        // values are read once : counters keep changing during the selection
+        Comparator<Ranked> byValue = Comparator.comparingLong(e -> e.value);
+        PriorityQueue<Ranked> smallest = new PriorityQueue<>(n + 1, byValue);
+        for (EndpointTraffic traffic : trafficByEndpoint.values()) {
+            smallest.add(new Ranked(traffic, counter.applyAsLong(traffic)));
+            if (smallest.size() > n) {
+                smallest.poll();
+            }
+        }
+        List<EndpointTraffic> top = new ArrayList<>(smallest.size());
+        while (!smallest.isEmpty()) {
+            top.add(smallest.poll().traffic);
+        }
+        Collections.reverse(top);
+        return top;
+    }
+
+    /**
+     * @return the number of endpoints with traffic.
+     */
+    public int size() {
+        return trafficByEndpoint.size();
+    }
+
+    @Override
+    public void sendRequest(Request request) {
+        sent(request, request.getDestinationContext().getPeerAddress());
+    }
+
+    @Override
+    public void sendResponse(Response response) {
+        EndpointTraffic traffic = sent(response, response.getDestinationContext().getPeerAddress());
+        if (traffic != null) {
+            traffic.onResponse(response.getCode());
+        }
+    }
+
+    @Override
+    public void sendEmptyMessage(EmptyMessage message) {
+        sent(message, message.getDestinationContext().getPeerAddress());
+    }
+
+    @Override
+    public void receiveRequest(Request request) {
+        received(request, request.getSourceContext().getPeerAddress());
+    }
+
+    @Override
+    public void receiveResponse(Response response) {
+        EndpointTraffic traffic = received(response, response.getSourceContext().getPeerAddress());
+        if (traffic != null) {
+            traffic.onResponse(response.getCode());
+        }
+    }
+
+    @Override
+    public void receiveEmptyMessage(EmptyMessage message) {
+        received(message, message.getSourceContext().getPeerAddress());
+    }
+
+    private EndpointTraffic sent(Message message, InetSocketAddress address) {
+        EndpointTraffic traffic = trafficOf(address);
+        if (traffic != null) {
+            traffic.onSent(message);
+        }
+        return traffic;
+    }
+
+    private EndpointTraffic received(Message message, InetSocketAddress address) {
+        EndpointTraffic traffic = trafficOf(address);
+        if (traffic != null) {
+            traffic.onReceived(message);
+        }
+        return traffic;
+    }
+
+    private EndpointTraffic trafficOf(InetSocketAddress address) {
+        String endpoint = endpointsByAddress.get(address);
+        if (endpoint == null) {
+            return null;
+        }
+        EndpointTraffic traffic = trafficByEndpoint.get(endpoint);
+        if (traffic == null) {
+            traffic = trafficByEndpoint.computeIfAbsent(endpoint, EndpointTraffic::new);
+        }
+        return traffic;
+    }
+
+    private static class Ranked {
+        private final EndpointTraffic traffic;
+        private final long value;
+
+        Ranked(EndpointTraffic traffic, long value) {
+            this.traffic = traffic;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Traffic counters of one endpoint.
+     */
+    public static class EndpointTraffic {
+
+        private final String endpoint;
+        private final long since = System.currentTimeMillis();
+        private final LongAdder messagesIn = new LongAdder();
+        private final LongAdder messagesOut = new LongAdder();
+        private final LongAdder bytesIn = new LongAdder();
+        private final LongAdder bytesOut = new LongAdder();
+        private final LongAdder retransmissions = new LongAdder();
+        private final LongAdder resets = new LongAdder();
+        private final Map<ResponseCode, LongAdder> errors = new ConcurrentHashMap<>();
+        // MID of the last confirmable message sent, to spot retransmissions (devices usually handle one at a time)
+        private final AtomicInteger lastConfirmableMid = new AtomicInteger(-1);
+        private volatile long lastSeen;
+
+        EndpointTraffic(String endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        void onSent(Message message) {
+            messagesOut.increment();
+            if (message.getBytes() != null) {
+                bytesOut.add(message.getBytes().length);
+            }
+            if (message.getType() == Type.CON && lastConfirmableMid.getAndSet(message.getMID()) == message.getMID()) {
+                retransmissions.increment();
+            } else if (message.getType() == Type.RST) {
+                resets.increment();
+            }
+        }
+
+        void onReceived(Message message) {
+            messagesIn.increment();
+            if (message.getBytes() != null) {
+                bytesIn.add(message.getBytes().length);
+            }
+            if (message.isDuplicate()) {
+                // the device did not get our acknowledgement in time
+                retransmissions.increment();
+            }
+            if (message.getType() == Type.RST) {
+                resets.increment();
+            }
+            long now = System.currentTimeMillis();
+            if (now != lastSeen) {
+                lastSeen = now;
+            }
+        }
+
+        void onResponse(ResponseCode code) {
+            if (code != null && !ResponseCode.isSuccess(code)) {
+                errors.computeIfAbsent(code, c -> new LongAdder()).increment();
+            }
+        }
+
+        public String getEndpoint() {
+            return endpoint;
+        }
+
+        /**
+         * @return the time counting started for this endpoint, in ms since epoch.
+         */
+        public long getSince() {
+            return since;
+        }
+
+        public long getMessagesIn() {
+            return messagesIn.sum();
+        }
+
+        public long getMessagesOut() {
+            return messagesOut.sum();
+        }
+
+        public long getBytesIn() {
+            return bytesIn.sum();
+        }
+
+        public long getBytesOut() {
+            return bytesOut.sum();
+        }
+
+        public long getRetransmissions() {
+            return retransmissions.sum();
+        }
+
+        public long getResets() {
+            return resets.sum();
+        }
+
+        /**
+         * @return the total number of error responses, sent or received.
+         */
+        public long getErrorCount() {
+            long count = 0;
+            for (LongAdder adder : errors.values()) {
+                count += adder.sum();
+            }
+            return count;
+        }
+
+        /**
+         * @return the number of error responses by code (e.g. <code>4.04</code>).
+         */
+        public Map<String, Long> getErrors() {
+            Map<String, Long> counts = new TreeMap<>();
+            for (Map.Entry<ResponseCode, LongAdder> error : errors.entrySet()) {
+                counts.put(error.getKey().text, error.getValue().sum());
+            }
+            return counts;
+        }
+
+        /**
+         * @return the time of the last message received from the device, in ms since epoch, 0 if none.
+         */
+        public long getLastSeen() {
+            return lastSeen;
+        }
+    }
+}